@@ -0,0 +1,420 @@
+package it.unito.mail.common;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Codifica binaria di Packet ed Email, alternativa alle righe JSON.
+ * Una connessione binaria inizia con PREAMBLE (inviato dal client e ripetuto dal server come conferma);
+ * ogni messaggio è poi un frame [int lunghezza][campi]. Ogni campo è preceduto da un tag varint
+ * (numero campo << 3 | tipo): i valori sono varint (interi con zigzag, timestamp in millisecondi
+ * dall'epoch, booleani) o sequenze di byte con lunghezza (stringhe UTF-8, Email annidate).
+ * Le liste sono campi ripetuti; i campi sconosciuti vengono saltati.
+ * Un frame con il bit più alto della lunghezza impostato contiene i campi compressi con gzip
+ * (solo se il client lo ha chiesto con acceptEncoding, vedi PacketCompression).
+ */
+public final class BinaryCodec {
+
+    public static final byte[] PREAMBLE = {0, 'M', 'B', 'P', 1};
+
+    private static final int COMPRESSED = 0x80000000;
+
+    private static final int VARINT = 0;
+    private static final int BYTES = 2;
+
+    private static final int P_COMMAND = 1;
+    private static final int P_EMAIL = 2;
+    private static final int P_USER = 3;
+    private static final int P_EMAIL_LIST = 4;
+    private static final int P_OUTCOME_CODE = 5;
+    private static final int P_OUTCOME_MESSAGE = 6;
+    private static final int P_LAST_UPDATE = 7;
+    private static final int P_SEQUENCE = 8;
+    private static final int P_DELETED_ID = 9;
+    private static final int P_READ_ID = 10;
+    private static final int P_FULL_SYNC = 11;
+    private static final int P_REQUEST_ID = 12;
+    private static final int P_KEEP_ALIVE = 13;
+    private static final int P_EMAIL_ID = 14;
+    private static final int P_WAIT_MILLIS = 15;
+    private static final int P_PAGE_SIZE = 16;
+    private static final int P_PAGE_CURSOR = 17;
+    private static final int P_ACCEPT_ENCODING = 18;
+    private static final int P_SUMMARY = 19;
+    private static final int P_RETRY_AFTER = 20;
+    private static final int P_QUERY = 21;
+    private static final int P_EPOCH = 22;
+
+    private static final int E_ID = 1;
+    private static final int E_SENDER = 2;
+    private static final int E_RECIPIENT = 3;
+    private static final int E_SUBJECT = 4;
+    private static final int E_TEXT = 5;
+    private static final int E_TIMESTAMP = 6;
+    private static final int E_READ = 7;
+    private static final int E_SIZE = 8;
+
+    private BinaryCodec() {}
+
+    public static boolean isPreamble(byte[] bytes) {
+        return Arrays.equals(bytes, PREAMBLE);
+    }
+
+    /**
+     * Restituisce il frame completo (prefisso di lunghezza incluso), pronto per essere scritto.
+     */
+    public static ByteBuffer encodeFrame(Packet packet) {
+        return encodeFrame(packet, PacketCompression.NEVER);
+    }
+
+    /**
+     * Come encodeFrame, ma comprime i campi se superano compressAbove byte.
+     */
+    public static ByteBuffer encodeFrame(Packet packet, int compressAbove) {
+        int size = packetSize(packet);
+        ByteBuffer frame = ByteBuffer.allocate(4 + size);
+        frame.putInt(size);
+        encode(packet, frame);
+        frame.flip();
+        if (size <= compressAbove) return frame;
+
+        byte[] compressed = PacketCompression.gzip(Arrays.copyOfRange(frame.array(), 4, 4 + size));
+        ByteBuffer compressedFrame = ByteBuffer.allocate(4 + compressed.length);
+        compressedFrame.putInt(COMPRESSED | compressed.length);
+        compressedFrame.put(compressed);
+        compressedFrame.flip();
+        return compressedFrame;
+    }
+
+    public static void encode(Packet packet, ByteBuffer out) {
+        putString(out, P_COMMAND, packet.getCommand());
+        if (packet.getEmail() != null) putEmail(out, P_EMAIL, packet.getEmail());
+        putString(out, P_USER, packet.getUserEmailAddress());
+        if (packet.getEmailList() != null) {
+            for (Email email : packet.getEmailList()) putEmail(out, P_EMAIL_LIST, email);
+        }
+        putString(out, P_OUTCOME_CODE, packet.getOutcomeCode());
+        putString(out, P_OUTCOME_MESSAGE, packet.getOutcomeMessage());
+        if (packet.getLastUpdateDate() != null) putLong(out, P_LAST_UPDATE, packet.getLastUpdateDate().getTime());
+        if (packet.getSequence() != null) putLong(out, P_SEQUENCE, packet.getSequence());
+        putStrings(out, P_DELETED_ID, packet.getDeletedIds());
+        putStrings(out, P_READ_ID, packet.getReadIds());
+        if (packet.isFullSync()) putLong(out, P_FULL_SYNC, 1);
+        putString(out, P_REQUEST_ID, packet.getRequestId());
+        if (packet.isKeepAlive()) putLong(out, P_KEEP_ALIVE, 1);
+        putStrings(out, P_EMAIL_ID, packet.getEmailIds());
+        if (packet.getWaitMillis() != null) putLong(out, P_WAIT_MILLIS, packet.getWaitMillis());
+        if (packet.getPageSize() != null) putLong(out, P_PAGE_SIZE, packet.getPageSize());
+        putString(out, P_PAGE_CURSOR, packet.getPageCursor());
+        putString(out, P_ACCEPT_ENCODING, packet.getAcceptEncoding());
+        if (packet.isSummary()) putLong(out, P_SUMMARY, 1);
+        if (packet.getRetryAfterMillis() != null) putLong(out, P_RETRY_AFTER, packet.getRetryAfterMillis());
+        putString(out, P_QUERY, packet.getQuery());
+        if (packet.getEpoch() != null) putLong(out, P_EPOCH, packet.getEpoch());
+    }
+
+    /**
+     * Decodifica i byte rimanenti del buffer (il contenuto di un frame, senza prefisso di lunghezza).
+     */
+    public static Packet decode(ByteBuffer in) {
+        Packet packet = new Packet();
+        try {
+            while (in.hasRemaining()) {
+                int tag = (int) readVarLong(in);
+                switch (tag >>> 3) {
+                    case P_COMMAND -> packet.setCommand(readString(in));
+                    case P_EMAIL -> packet.setEmail(readEmail(in));
+                    case P_USER -> packet.setUserEmailAddress(readString(in));
+                    case P_EMAIL_LIST -> {
+                        if (packet.getEmailList() == null) packet.setEmailList(new ArrayList<>());
+                        packet.getEmailList().add(readEmail(in));
+                    }
+                    case P_OUTCOME_CODE -> packet.setOutcomeCode(readString(in));
+                    case P_OUTCOME_MESSAGE -> packet.setOutcomeMessage(readString(in));
+                    case P_LAST_UPDATE -> packet.setLastUpdateDate(new Date(readLong(in)));
+                    case P_SEQUENCE -> packet.setSequence(readLong(in));
+                    case P_DELETED_ID -> {
+                        if (packet.getDeletedIds() == null) packet.setDeletedIds(new ArrayList<>());
+                        packet.getDeletedIds().add(readString(in));
+                    }
+                    case P_READ_ID -> {
+                        if (packet.getReadIds() == null) packet.setReadIds(new ArrayList<>());
+                        packet.getReadIds().add(readString(in));
+                    }
+                    case P_FULL_SYNC -> packet.setFullSync(readLong(in) != 0);
+                    case P_REQUEST_ID -> packet.setRequestId(readString(in));
+                    case P_KEEP_ALIVE -> packet.setKeepAlive(readLong(in) != 0);
+                    case P_EMAIL_ID -> {
+                        if (packet.getEmailIds() == null) packet.setEmailIds(new ArrayList<>());
+                        packet.getEmailIds().add(readString(in));
+                    }
+                    case P_WAIT_MILLIS -> packet.setWaitMillis(readLong(in));
+                    case P_PAGE_SIZE -> packet.setPageSize((int) readLong(in));
+                    case P_PAGE_CURSOR -> packet.setPageCursor(readString(in));
+                    case P_ACCEPT_ENCODING -> packet.setAcceptEncoding(readString(in));
+                    case P_SUMMARY -> packet.setSummary(readLong(in) != 0);
+                    case P_RETRY_AFTER -> packet.setRetryAfterMillis(readLong(in));
+                    case P_QUERY -> packet.setQuery(readString(in));
+                    case P_EPOCH -> packet.setEpoch(readLong(in));
+                    default -> skip(in, tag & 7);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Frame binario troncato", e);
+        }
+        return packet;
+    }
+
+    public static void writeFrame(OutputStream out, Packet packet) throws IOException {
+        writeFrame(out, packet, PacketCompression.NEVER);
+    }
+
+    public static void writeFrame(OutputStream out, Packet packet, int compressAbove) throws IOException {
+        ByteBuffer frame = encodeFrame(packet, compressAbove);
+        out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+        out.flush();
+    }
+
+    /**
+     * Legge un frame dallo stream; restituisce null se lo stream termina prima di un nuovo frame.
+     */
+    public static Packet readFrame(InputStream in, int maxBytes) throws IOException {
+        DataInputStream data = in instanceof DataInputStream d ? d : new DataInputStream(in);
+        int length;
+        try {
+            length = data.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        boolean compressed = (length & COMPRESSED) != 0;
+        length &= ~COMPRESSED;
+        if (length > maxBytes) {
+            throw new IOException("Dimensione frame non valida: " + length);
+        }
+        byte[] payload = new byte[length];
+        data.readFully(payload);
+        if (compressed) payload = PacketCompression.gunzip(payload, maxBytes);
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    public static int packetSize(Packet packet) {
+        int size = stringSize(P_COMMAND, packet.getCommand());
+        if (packet.getEmail() != null) size += bytesSize(P_EMAIL, emailSize(packet.getEmail()));
+        size += stringSize(P_USER, packet.getUserEmailAddress());
+        if (packet.getEmailList() != null) {
+            for (Email email : packet.getEmailList()) size += bytesSize(P_EMAIL_LIST, emailSize(email));
+        }
+        size += stringSize(P_OUTCOME_CODE, packet.getOutcomeCode());
+        size += stringSize(P_OUTCOME_MESSAGE, packet.getOutcomeMessage());
+        if (packet.getLastUpdateDate() != null) size += longSize(P_LAST_UPDATE, packet.getLastUpdateDate().getTime());
+        if (packet.getSequence() != null) size += longSize(P_SEQUENCE, packet.getSequence());
+        size += stringsSize(P_DELETED_ID, packet.getDeletedIds());
+        size += stringsSize(P_READ_ID, packet.getReadIds());
+        if (packet.isFullSync()) size += longSize(P_FULL_SYNC, 1);
+        size += stringSize(P_REQUEST_ID, packet.getRequestId());
+        if (packet.isKeepAlive()) size += longSize(P_KEEP_ALIVE, 1);
+        size += stringsSize(P_EMAIL_ID, packet.getEmailIds());
+        if (packet.getWaitMillis() != null) size += longSize(P_WAIT_MILLIS, packet.getWaitMillis());
+        if (packet.getPageSize() != null) size += longSize(P_PAGE_SIZE, packet.getPageSize());
+        size += stringSize(P_PAGE_CURSOR, packet.getPageCursor());
+        size += stringSize(P_ACCEPT_ENCODING, packet.getAcceptEncoding());
+        if (packet.isSummary()) size += longSize(P_SUMMARY, 1);
+        if (packet.getRetryAfterMillis() != null) size += longSize(P_RETRY_AFTER, packet.getRetryAfterMillis());
+        size += stringSize(P_QUERY, packet.getQuery());
+        if (packet.getEpoch() != null) size += longSize(P_EPOCH, packet.getEpoch());
+        return size;
+    }
+
+    private static int emailSize(Email email) {
+        int size = stringSize(E_ID, email.getId());
+        size += stringSize(E_SENDER, email.getSender());
+        size += stringsSize(E_RECIPIENT, email.getRecipients());
+        size += stringSize(E_SUBJECT, email.getSubject());
+        size += stringSize(E_TEXT, email.getText());
+        if (email.getTimestamp() != null) size += longSize(E_TIMESTAMP, email.getTimestamp().getTime());
+        if (email.isRead()) size += longSize(E_READ, 1);
+        if (email.getSize() != null) size += longSize(E_SIZE, email.getSize());
+        return size;
+    }
+
+    private static void putEmail(ByteBuffer out, int field, Email email) {
+        putVarLong(out, field << 3 | BYTES);
+        putVarLong(out, emailSize(email));
+        putString(out, E_ID, email.getId());
+        putString(out, E_SENDER, email.getSender());
+        putStrings(out, E_RECIPIENT, email.getRecipients());
+        putString(out, E_SUBJECT, email.getSubject());
+        putString(out, E_TEXT, email.getText());
+        if (email.getTimestamp() != null) putLong(out, E_TIMESTAMP, email.getTimestamp().getTime());
+        if (email.isRead()) putLong(out, E_READ, 1);
+        if (email.getSize() != null) putLong(out, E_SIZE, email.getSize());
+    }
+
+    private static Email readEmail(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        int end = in.position() + length;
+        if (length < 0 || end > in.limit()) throw new IllegalArgumentException("Email binaria troncata");
+
+        Email email = new Email();
+        while (in.position() < end) {
+            int tag = (int) readVarLong(in);
+            switch (tag >>> 3) {
+                case E_ID -> email.setId(readString(in));
+                case E_SENDER -> email.setSender(readString(in));
+                case E_RECIPIENT -> {
+                    if (email.getRecipients() == null) email.setRecipients(new ArrayList<>());
+                    email.getRecipients().add(readString(in));
+                }
+                case E_SUBJECT -> email.setSubject(readString(in));
+                case E_TEXT -> email.setText(readString(in));
+                case E_TIMESTAMP -> email.setTimestamp(new Date(readLong(in)));
+                case E_READ -> email.setRead(readLong(in) != 0);
+                case E_SIZE -> email.setSize((int) readLong(in));
+                default -> skip(in, tag & 7);
+            }
+        }
+        return email;
+    }
+
+    private static void putString(ByteBuffer out, int field, String value) {
+        if (value == null) return;
+        putVarLong(out, field << 3 | BYTES);
+        putVarLong(out, utf8Length(value));
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private static void putStrings(ByteBuffer out, int field, List<String> values) {
+        if (values == null) return;
+        for (String value : values) putString(out, field, value);
+    }
+
+    private static void putLong(ByteBuffer out, int field, long value) {
+        putVarLong(out, field << 3 | VARINT);
+        putVarLong(out, zigzag(value));
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        if (length < 0 || length > in.remaining()) throw new IllegalArgumentException("Stringa binaria troncata");
+
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            value = StandardCharsets.UTF_8.decode(in.slice(in.position(), length)).toString();
+        }
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static long readLong(ByteBuffer in) {
+        long raw = readVarLong(in);
+        return raw >>> 1 ^ -(raw & 1);
+    }
+
+    private static void skip(ByteBuffer in, int wireType) {
+        if (wireType == VARINT) {
+            readVarLong(in);
+        } else if (wireType == BYTES) {
+            int length = (int) readVarLong(in);
+            in.position(in.position() + length);
+        } else {
+            throw new IllegalArgumentException("Tipo di campo sconosciuto: " + wireType);
+        }
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Varint non valido");
+    }
+
+    private static long zigzag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static int stringSize(int field, String value) {
+        return value == null ? 0 : bytesSize(field, utf8Length(value));
+    }
+
+    private static int stringsSize(int field, List<String> values) {
+        if (values == null) return 0;
+        int size = 0;
+        for (String value : values) size += stringSize(field, value);
+        return size;
+    }
+
+    private static int longSize(int field, long value) {
+        return varLongSize(field << 3) + varLongSize(zigzag(value));
+    }
+
+    private static int bytesSize(int field, int length) {
+        return varLongSize(field << 3) + varLongSize(length) + length;
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
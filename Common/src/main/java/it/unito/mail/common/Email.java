@@ -21,6 +21,7 @@ public class Email implements Serializable {
     private String text;
     private Date timestamp;
     private boolean read = false;
+    private Integer size;
 
     public Email() {}
 
@@ -78,6 +79,23 @@ public class Email implements Serializable {
         this.timestamp = timestamp;
     }
 
+    /**
+     * Dimensione in byte del testo; valorizzata nelle intestazioni inviate senza corpo (vedi isSummary).
+     */
+    public Integer getSize() {
+        return size;
+    }
+    public void setSize(Integer size) {
+        this.size = size;
+    }
+
+    /**
+     * True se l'email è solo un'intestazione: testo e destinatari vanno richiesti con FETCH_EMAIL.
+     */
+    public boolean isSummary() {
+        return text == null && size != null;
+    }
+
     @Override
     public String toString() {
         return String.format("[%s] Da: %s - Oggetto: %s", timestamp, sender, subject);
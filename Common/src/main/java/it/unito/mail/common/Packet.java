@@ -13,6 +13,21 @@ public class Packet implements Serializable {
     private String outcomeCode;
     private String outcomeMessage;
     private java.util.Date lastUpdateDate;
+    private Long sequence;
+    private Long epoch;
+    private List<String> deletedIds;
+    private List<String> readIds;
+    private Boolean fullSync;
+    private String requestId;
+    private Boolean keepAlive;
+    private List<String> emailIds;
+    private Long waitMillis;
+    private Integer pageSize;
+    private String pageCursor;
+    private String acceptEncoding;
+    private Boolean summary;
+    private Long retryAfterMillis;
+    private String query;
 
     public Packet() {}
 
@@ -61,4 +76,107 @@ public class Packet implements Serializable {
     public void setLastUpdateDate(java.util.Date lastUpdateDate) {
         this.lastUpdateDate = lastUpdateDate;
     }
-}
\ No newline at end of file
+    public Long getSequence() {
+        return sequence;
+    }
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+    /**
+     * Incarnazione della mailbox a cui si riferisce sequence. Se il server ne ha una diversa (per esempio dopo
+     * un riavvio che ha perso modifiche non ancora scritte) il cursore non vale più e la risposta è una sincronizzazione completa.
+     */
+    public Long getEpoch() {
+        return epoch;
+    }
+    public void setEpoch(Long epoch) {
+        this.epoch = epoch;
+    }
+    public List<String> getDeletedIds() {
+        return deletedIds;
+    }
+    public void setDeletedIds(List<String> deletedIds) {
+        this.deletedIds = deletedIds;
+    }
+    public List<String> getReadIds() {
+        return readIds;
+    }
+    public void setReadIds(List<String> readIds) {
+        this.readIds = readIds;
+    }
+    public boolean isFullSync() {
+        return Boolean.TRUE.equals(fullSync);
+    }
+    public void setFullSync(boolean fullSync) {
+        this.fullSync = fullSync ? Boolean.TRUE : null;
+    }
+    public String getRequestId() {
+        return requestId;
+    }
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+    public boolean isKeepAlive() {
+        return Boolean.TRUE.equals(keepAlive);
+    }
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive ? Boolean.TRUE : null;
+    }
+    public List<String> getEmailIds() {
+        return emailIds;
+    }
+    public void setEmailIds(List<String> emailIds) {
+        this.emailIds = emailIds;
+    }
+    public Long getWaitMillis() {
+        return waitMillis;
+    }
+    public void setWaitMillis(Long waitMillis) {
+        this.waitMillis = waitMillis;
+    }
+    public Integer getPageSize() {
+        return pageSize;
+    }
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+    public String getPageCursor() {
+        return pageCursor;
+    }
+    public void setPageCursor(String pageCursor) {
+        this.pageCursor = pageCursor;
+    }
+    public String getAcceptEncoding() {
+        return acceptEncoding;
+    }
+    public void setAcceptEncoding(String acceptEncoding) {
+        this.acceptEncoding = acceptEncoding;
+    }
+    /**
+     * Se true nelle richieste di aggiornamento, le email vengono inviate come intestazioni senza corpo.
+     */
+    public boolean isSummary() {
+        return Boolean.TRUE.equals(summary);
+    }
+    public void setSummary(boolean summary) {
+        this.summary = summary ? Boolean.TRUE : null;
+    }
+    /**
+     * Nelle risposte BUSY: dopo quanti millisecondi ripetere la richiesta.
+     */
+    public Long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+    public void setRetryAfterMillis(Long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+    /**
+     * Per SEARCH: parole (o prefissi di parole) che i messaggi devono contenere tutte.
+     */
+    public String getQuery() {
+        return query;
+    }
+    public void setQuery(String query) {
+        this.query = query;
+    }
+}
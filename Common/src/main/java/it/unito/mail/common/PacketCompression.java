@@ -0,0 +1,78 @@
+package it.unito.mail.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressione gzip delle risposte, negoziata per richiesta: il client imposta acceptEncoding a GZIP
+ * e il server comprime solo le risposte che superano la sua soglia.
+ * Nel protocollo JSON una riga compressa è "gzip:" seguito dal base64 del JSON compresso
+ * (una riga JSON normale inizia sempre con '{'); nel protocollo binario il frame compresso
+ * ha il bit più alto della lunghezza impostato (vedi BinaryCodec).
+ */
+public final class PacketCompression {
+
+    public static final String GZIP = "gzip";
+    public static final int NEVER = Integer.MAX_VALUE;
+
+    private static final String LINE_PREFIX = GZIP + ":";
+
+    private PacketCompression() {}
+
+    public static boolean accepts(Packet request) {
+        return request != null && GZIP.equals(request.getAcceptEncoding());
+    }
+
+    /**
+     * Restituisce la riga da inviare (senza terminatore), compressa se supera compressAbove byte.
+     */
+    public static String encodeLine(String json, int compressAbove) {
+        if (json.length() <= compressAbove / 3) return json;
+        byte[] raw = json.getBytes(StandardCharsets.UTF_8);
+        if (raw.length <= compressAbove) return json;
+        return LINE_PREFIX + Base64.getEncoder().encodeToString(gzip(raw));
+    }
+
+    public static String decodeLine(String line, int maxBytes) throws IOException {
+        if (line == null || !line.startsWith(LINE_PREFIX)) return line;
+        byte[] compressed;
+        try {
+            compressed = Base64.getDecoder().decode(line.substring(LINE_PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Risposta compressa non valida", e);
+        }
+        return new String(gunzip(compressed, maxBytes), StandardCharsets.UTF_8);
+    }
+
+    static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        // livello più veloce: il testo delle email si comprime bene anche così e la latenza conta più dei byte
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        }) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] gunzip(byte[] data, int maxBytes) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data), 8192)) {
+            byte[] result = in.readNBytes(maxBytes);
+            if (in.read() >= 0) {
+                throw new IOException("Risposta decompressa oltre il limite di " + maxBytes + " byte");
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package it.unito.mail.common;
+
+import java.text.Normalizer;
+import java.util.Collection;
+
+/**
+ * Suddivisione in parole per gli indici di ricerca del client e del server, così una query
+ * dà gli stessi risultati in locale e con SEARCH.
+ * Le parole sono in minuscolo e senza accenti ("Perché" diventa "perche"); separatore è ogni carattere
+ * che non sia una lettera o una cifra.
+ */
+public final class SearchTokenizer {
+
+    private SearchTokenizer() {}
+
+    /**
+     * Aggiunge a into le parole di text e restituisce into. Scansione a mano, senza espressioni regolari:
+     * viene eseguita per ogni messaggio indicizzato.
+     */
+    public static <C extends Collection<String>> C tokenize(String text, C into) {
+        if (text == null || text.isEmpty()) return into;
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                    token.append(c);
+                } else if (c >= 'A' && c <= 'Z') {
+                    token.append((char) (c + ('a' - 'A')));
+                } else if (token.length() > 0) {
+                    into.add(token.toString());
+                    token.setLength(0);
+                }
+            } else if (Character.isLetterOrDigit(c)) {
+                String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+                for (int j = 0; j < decomposed.length(); j++) {
+                    char d = decomposed.charAt(j);
+                    if (Character.getType(d) != Character.NON_SPACING_MARK) token.append(Character.toLowerCase(d));
+                }
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK && token.length() > 0) {
+                into.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) into.add(token.toString());
+        return into;
+    }
+
+    /**
+     * True se ogni parola di terms è il prefisso di almeno una parola di tokens.
+     */
+    public static boolean matchesAll(String[] tokens, Collection<String> terms) {
+        for (String term : terms) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.startsWith(term)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) return false;
+        }
+        return true;
+    }
+}
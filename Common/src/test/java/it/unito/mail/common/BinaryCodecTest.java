@@ -0,0 +1,146 @@
+package it.unito.mail.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryCodecTest {
+
+    private static final int MAX_BYTES = 1 << 20;
+
+    @Test
+    void roundTripKeepsEveryField() throws IOException {
+        Packet packet = new Packet("GET_UPDATES", "user1@mail.com");
+        packet.setEmail(email("Perché la città è chiusa?", "testo con accenti: àèìòù"));
+        packet.setEmailList(List.of(email("uno", "primo"), email("due", null)));
+        packet.setOutcomeCode("OK");
+        packet.setOutcomeMessage("tutto bene");
+        packet.setLastUpdateDate(new Date(1_700_000_000_123L));
+        packet.setSequence(42L);
+        packet.setEpoch(-7L);
+        packet.setDeletedIds(List.of("a", "b"));
+        packet.setReadIds(List.of("c"));
+        packet.setFullSync(true);
+        packet.setRequestId("17");
+        packet.setKeepAlive(true);
+        packet.setEmailIds(List.of("x", "y", "z"));
+        packet.setWaitMillis(20_000L);
+        packet.setPageSize(50);
+        packet.setPageCursor("1700000000000:abc");
+        packet.setAcceptEncoding(PacketCompression.GZIP);
+        packet.setSummary(true);
+        packet.setRetryAfterMillis(250L);
+        packet.setQuery("fattura pagam");
+
+        Packet decoded = roundTrip(packet, PacketCompression.NEVER);
+
+        assertEquals(packet.getCommand(), decoded.getCommand());
+        assertEquals(packet.getUserEmailAddress(), decoded.getUserEmailAddress());
+        assertEmailEquals(packet.getEmail(), decoded.getEmail());
+        assertEquals(2, decoded.getEmailList().size());
+        assertEmailEquals(packet.getEmailList().get(0), decoded.getEmailList().get(0));
+        assertEmailEquals(packet.getEmailList().get(1), decoded.getEmailList().get(1));
+        assertEquals(packet.getOutcomeCode(), decoded.getOutcomeCode());
+        assertEquals(packet.getOutcomeMessage(), decoded.getOutcomeMessage());
+        assertEquals(packet.getLastUpdateDate(), decoded.getLastUpdateDate());
+        assertEquals(packet.getSequence(), decoded.getSequence());
+        assertEquals(packet.getEpoch(), decoded.getEpoch());
+        assertEquals(packet.getDeletedIds(), decoded.getDeletedIds());
+        assertEquals(packet.getReadIds(), decoded.getReadIds());
+        assertTrue(decoded.isFullSync());
+        assertEquals(packet.getRequestId(), decoded.getRequestId());
+        assertTrue(decoded.isKeepAlive());
+        assertEquals(packet.getEmailIds(), decoded.getEmailIds());
+        assertEquals(packet.getWaitMillis(), decoded.getWaitMillis());
+        assertEquals(packet.getPageSize(), decoded.getPageSize());
+        assertEquals(packet.getPageCursor(), decoded.getPageCursor());
+        assertEquals(packet.getAcceptEncoding(), decoded.getAcceptEncoding());
+        assertTrue(decoded.isSummary());
+        assertEquals(packet.getRetryAfterMillis(), decoded.getRetryAfterMillis());
+        assertEquals(packet.getQuery(), decoded.getQuery());
+    }
+
+    @Test
+    void absentFieldsStayAbsent() throws IOException {
+        Packet decoded = roundTrip(new Packet("LOGIN", "user2@mail.com"), PacketCompression.NEVER);
+
+        assertEquals("LOGIN", decoded.getCommand());
+        assertNull(decoded.getEmail());
+        assertNull(decoded.getSequence());
+        assertNull(decoded.getEpoch());
+        assertNull(decoded.getRequestId());
+        assertFalse(decoded.isKeepAlive());
+        assertFalse(decoded.isSummary());
+    }
+
+    @Test
+    void compressedFrameRoundTrip() throws IOException {
+        Packet packet = new Packet("SEND_EMAIL", "user1@mail.com");
+        packet.setEmail(email("lungo", "riunione progetto consegna ".repeat(500)));
+
+        ByteBuffer plain = BinaryCodec.encodeFrame(packet);
+        ByteBuffer compressed = BinaryCodec.encodeFrame(packet, 0);
+        assertTrue(compressed.remaining() < plain.remaining());
+
+        Packet decoded = roundTrip(packet, 0);
+        assertEmailEquals(packet.getEmail(), decoded.getEmail());
+    }
+
+    @Test
+    void endOfStreamReturnsNull() throws IOException {
+        assertNull(BinaryCodec.readFrame(new ByteArrayInputStream(new byte[0]), MAX_BYTES));
+    }
+
+    @Test
+    void frameLargerThanLimitIsRejected() {
+        Packet packet = new Packet("SEND_EMAIL", "user1@mail.com");
+        packet.setEmail(email("grande", "x".repeat(4096)));
+        ByteBuffer frame = BinaryCodec.encodeFrame(packet);
+        InputStream in = new ByteArrayInputStream(frame.array(), 0, frame.remaining());
+
+        assertThrows(IOException.class, () -> BinaryCodec.readFrame(in, 1024));
+    }
+
+    private static Packet roundTrip(Packet packet, int compressAbove) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryCodec.writeFrame(out, packet, compressAbove);
+        BinaryCodec.writeFrame(out, new Packet("NEXT", null), PacketCompression.NEVER);
+
+        InputStream in = new ByteArrayInputStream(out.toByteArray());
+        Packet decoded = BinaryCodec.readFrame(in, MAX_BYTES);
+        assertEquals("NEXT", BinaryCodec.readFrame(in, MAX_BYTES).getCommand());
+        assertNull(BinaryCodec.readFrame(in, MAX_BYTES));
+        return decoded;
+    }
+
+    private static Email email(String subject, String text) {
+        Email email = new Email("user1@mail.com", List.of("user2@mail.com", "user3@mail.com"), subject, text);
+        email.setTimestamp(new Date(1_700_000_000_000L));
+        email.setRead(true);
+        email.setSize(text != null ? text.length() : 0);
+        return email;
+    }
+
+    private static void assertEmailEquals(Email expected, Email actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getRecipients(), actual.getRecipients());
+        assertEquals(expected.getSubject(), actual.getSubject());
+        assertEquals(expected.getText(), actual.getText());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.isRead(), actual.isRead());
+        assertEquals(expected.getSize(), actual.getSize());
+    }
+}
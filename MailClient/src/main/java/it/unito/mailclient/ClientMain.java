@@ -19,8 +19,10 @@ public class ClientMain extends Application {
         stage.setTitle("Mail Client");
         stage.setScene(scene);
 
+        stage.focusedProperty().addListener((obs, wasFocused, focused) -> controller.setWindowActive(focused));
+
         stage.setOnCloseRequest(event -> {
-            controller.shutdown();
+            controller.close();
             System.exit(0);
         });
 
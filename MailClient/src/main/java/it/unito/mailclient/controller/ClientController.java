@@ -6,6 +6,7 @@ import it.unito.mailclient.model.ClientModel;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
+import javafx.collections.transformation.SortedList;
 import javafx.fxml.FXML;
 import javafx.scene.Cursor;
 import javafx.scene.control.*;
@@ -19,15 +20,14 @@ import javafx.scene.input.MouseEvent;
 
 import java.util.Date;
 import java.util.Optional;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class ClientController {
 
     @FXML private VBox loginPane;
     @FXML private BorderPane inboxPane;
     @FXML private TextField emailField;
+    @FXML private TextField searchField;
     @FXML private Label errorLabel;
     @FXML private Label currentUserLabel;
     @FXML private Label connectionStatusLabel;
@@ -40,7 +40,6 @@ public class ClientController {
     @FXML private Button loginButton;
 
     private ClientModel model;
-    private ScheduledExecutorService autoRefreshService;
     private int unreadNotificationsCount = 0;
 
     @FXML
@@ -89,11 +88,15 @@ public class ClientController {
             }
         });
 
-        emailTable.setItems(model.getInbox());
+        // l'inbox resta ordinata dal più recente: l'ordinamento per colonna lo applica solo la vista
+        SortedList<Email> sortedResults = new SortedList<>(model.getSearchResults());
+        sortedResults.comparatorProperty().bind(emailTable.comparatorProperty());
+        emailTable.setItems(sortedResults);
+        searchField.textProperty().addListener((obs, oldVal, newVal) -> model.search(newVal));
 
         model.getInbox().addListener((javafx.collections.ListChangeListener.Change<? extends Email> c) -> {
             while (c.next()) {
-                if (c.wasAdded() && inboxPane.isVisible()) {
+                if (c.wasAdded() && !c.wasReplaced() && inboxPane.isVisible() && !model.isMergingBackfill()) {
                     final int newInBatch = c.getAddedSize();
 
                     Platform.runLater(() -> {
@@ -165,7 +168,7 @@ public class ClientController {
         emailField.setDisable(true);
         loginButton.setDisable(true);
 
-        new Thread(() -> {
+        boolean started = model.runAction(() -> {
             boolean success = model.login(email);
             Platform.runLater(() -> {
                 if (success) {
@@ -179,29 +182,27 @@ public class ClientController {
                     loginButton.setDisable(false);
                 }
             });
-        }).start();
+        });
+        if (!started) {
+            emailField.setDisable(false);
+            loginButton.setDisable(false);
+        }
     }
 
     private void startAutoRefresh() {
-        if (autoRefreshService != null && !autoRefreshService.isShutdown()) {
-            autoRefreshService.shutdownNow();
-        }
-        autoRefreshService = Executors.newScheduledThreadPool(1);
-        autoRefreshService.scheduleAtFixedRate(() -> {
-            model.refreshInbox();
-        }, 5, 5, TimeUnit.SECONDS);
+        model.startAutoRefresh();
     }
 
     @FXML
     protected void onDeleteButtonClick() {
         Email selected = emailTable.getSelectionModel().getSelectedItem();
         if (selected != null) {
-            new Thread(() -> {
+            model.runAction(() -> {
                 model.deleteEmail(selected);
                 Platform.runLater(() -> {
                     messageArea.clear();
                 });
-            }).start();
+            });
         } else {
             showAlert("Nessuna selezione", "Seleziona una mail da cancellare.");
         }
@@ -227,14 +228,18 @@ public class ClientController {
     protected void onReplyAllButtonClick() {
         Email selected = emailTable.getSelectionModel().getSelectedItem();
         if (selected != null) {
-            StringBuilder recipients = new StringBuilder(selected.getSender());
-            for (String r : selected.getRecipients()) {
-                if (!r.equalsIgnoreCase(model.getUserEmailAddress()) && !r.equalsIgnoreCase(selected.getSender())) {
-                    recipients.append(", ").append(r);
+            withFullEmail(selected, full -> {
+                StringBuilder recipients = new StringBuilder(full.getSender());
+                if (full.getRecipients() != null) {
+                    for (String r : full.getRecipients()) {
+                        if (!r.equalsIgnoreCase(model.getUserEmailAddress()) && !r.equalsIgnoreCase(full.getSender())) {
+                            recipients.append(", ").append(r);
+                        }
+                    }
                 }
-            }
-            String subject = "Re: " + selected.getSubject();
-            showComposeDialog(new Email(recipients.toString(), null, subject, ""), "Rispondi a Tutti");
+                String subject = "Re: " + full.getSubject();
+                showComposeDialog(new Email(recipients.toString(), null, subject, ""), "Rispondi a Tutti");
+            });
         } else {
             showAlert("Attenzione", "Seleziona una mail a cui rispondere.");
         }
@@ -244,9 +249,11 @@ public class ClientController {
     protected void onForwardButtonClick() {
         Email selected = emailTable.getSelectionModel().getSelectedItem();
         if (selected != null) {
-            String subject = "Fwd: " + selected.getSubject();
-            String body = "\n\n--- Inoltrato ---\n" + selected.getText();
-            showComposeDialog(new Email("", null, subject, body), "Inoltra");
+            withFullEmail(selected, full -> {
+                String subject = "Fwd: " + full.getSubject();
+                String body = "\n\n--- Inoltrato ---\n" + full.getText();
+                showComposeDialog(new Email("", null, subject, body), "Inoltra");
+            });
         }
 
         else {
@@ -256,7 +263,17 @@ public class ClientController {
 
     private void showEmailDetails(Email email) {
         if (email != null) {
-            messageArea.setText(email.getText());
+            Email loaded = model.getLoadedEmail(email);
+            if (loaded != null) {
+                messageArea.setText(loaded.getText());
+            } else {
+                messageArea.setText("Caricamento...");
+                withFullEmail(email, full -> {
+                    if (email == emailTable.getSelectionModel().getSelectedItem()) {
+                        messageArea.setText(full.getText());
+                    }
+                });
+            }
             if (!email.isRead()) {
                 email.setRead(true);
                 emailTable.refresh();
@@ -281,6 +298,24 @@ public class ClientController {
         }
     }
 
+    /**
+     * Esegue action sul thread JavaFX con l'email completa, scaricando il corpo dal server se la lista
+     * contiene solo l'intestazione.
+     */
+    private void withFullEmail(Email email, Consumer<Email> action) {
+        Email loaded = model.getLoadedEmail(email);
+        if (loaded != null) {
+            action.accept(loaded);
+            return;
+        }
+        model.runAction(() -> {
+            Email full = model.fetchEmail(email);
+            if (full != null) {
+                Platform.runLater(() -> action.accept(full));
+            }
+        });
+    }
+
     private void showComposeDialog(Email draft, String title) {
         Dialog<ButtonType> dialog = new Dialog<>();
         dialog.setTitle(title);
@@ -308,9 +343,10 @@ public class ClientController {
 
         Optional<ButtonType> result = dialog.showAndWait();
         if (result.isPresent() && result.get() == sendButtonType) {
-            new Thread(() -> {
-                model.sendEmail(toField.getText(), subjectField.getText(), bodyArea.getText());
-            }).start();
+            String to = toField.getText();
+            String subject = subjectField.getText();
+            String body = bodyArea.getText();
+            model.runAction(() -> model.sendEmail(to, subject, body));
         }
     }
 
@@ -329,6 +365,7 @@ public class ClientController {
         unreadNotificationsCount = 0;
         inboxPane.setVisible(false);
         loginPane.setVisible(true);
+        searchField.clear();
         emailField.clear();
         messageArea.clear();
         emailField.setDisable(false);
@@ -336,8 +373,21 @@ public class ClientController {
     }
 
     public void shutdown() {
-        if (autoRefreshService != null) {
-            autoRefreshService.shutdownNow();
-        }
+        model.stopAutoRefresh();
+    }
+
+    /**
+     * Chiamato quando la finestra acquista o perde il focus: con la finestra inattiva gli aggiornamenti sono più radi.
+     */
+    public void setWindowActive(boolean active) {
+        model.setWindowActive(active);
+    }
+
+    /**
+     * Alla chiusura dell'applicazione: ferma gli aggiornamenti e salva lo stato locale dell'inbox.
+     */
+    public void close() {
+        shutdown();
+        model.close();
     }
 }
\ No newline at end of file
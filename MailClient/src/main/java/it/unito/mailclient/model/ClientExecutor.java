@@ -0,0 +1,134 @@
+package it.unito.mailclient.model;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unico esecutore per le operazioni di rete del client: un numero fisso di thread che prendono i compiti
+ * da una coda con priorità (prima le azioni dell'utente, poi gli aggiornamenti in background,
+ * a parità di priorità in ordine di arrivo). La coda è limitata a maxQueued compiti: submit rifiuta i nuovi
+ * compiti, mentre un compito programmato che scade con la coda piena aspetta sul timer che si liberi posto.
+ * cancelAll annulla i compiti in coda e programmati, per esempio al logout; quelli già in esecuzione terminano.
+ */
+public class ClientExecutor {
+
+    public enum Priority { USER, BACKGROUND }
+
+    private static final long QUEUE_FULL_RETRY_MILLIS = 200;
+
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService timer;
+    private final int maxQueued;
+    private final AtomicLong order = new AtomicLong();
+    private final Set<Task> pending = ConcurrentHashMap.newKeySet();
+
+    ClientExecutor(int threads, int maxQueued) {
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, queue, r -> {
+            Thread t = new Thread(r, "client-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+        // il timer non esegue compiti: allo scadere li inserisce nella coda dei worker
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "client-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxQueued = maxQueued;
+    }
+
+    public Future<?> submit(Priority priority, Runnable action) {
+        Task task = new Task(priority, action);
+        if (queue.size() >= maxQueued) {
+            throw new RejectedExecutionException("Troppe operazioni in coda");
+        }
+        pending.add(task);
+        workers.execute(task);
+        return task;
+    }
+
+    public Future<?> schedule(Priority priority, Runnable action, long delayMillis) {
+        if (delayMillis <= 0) return submit(priority, action);
+        Task task = new Task(priority, action);
+        pending.add(task);
+        enqueueAfter(task, delayMillis);
+        return task;
+    }
+
+    private void enqueueAfter(Task task, long delayMillis) {
+        timer.schedule(() -> {
+            if (task.isDone()) return;
+            if (queue.size() >= maxQueued) {
+                enqueueAfter(task, QUEUE_FULL_RETRY_MILLIS);
+                return;
+            }
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.cancel(false);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Annulla i compiti in coda e programmati. Quelli in esecuzione non vengono interrotti:
+     * un invio già partito arriva comunque al server, e interromperlo lascerebbe l'esito sconosciuto.
+     */
+    public void cancelAll() {
+        for (Task task : pending) {
+            task.cancel(false);
+        }
+    }
+
+    private class Task extends FutureTask<Void> implements Comparable<Task> {
+
+        private final Priority priority;
+        private final long sequence = order.incrementAndGet();
+
+        Task(Priority priority, Runnable action) {
+            super(action, null);
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) queue.remove(this);
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            pending.remove(this);
+            if (isCancelled()) return;
+            try {
+                get();
+            } catch (ExecutionException e) {
+                System.err.println("Errore in un'operazione in background: " + e.getCause());
+                e.getCause().printStackTrace();
+            } catch (InterruptedException | CancellationException ignored) {
+            }
+        }
+    }
+}
@@ -1,70 +1,251 @@
 package it.unito.mailclient.model;
 
+import it.unito.mail.common.BinaryCodec;
 import it.unito.mail.common.Email;
 import it.unito.mail.common.Packet;
+import it.unito.mail.common.PacketCompression;
 import com.google.gson.Gson;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
-import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 public class ClientModel {
 
     private static final String SERVER_IP = "127.0.0.1";
     private static final int SERVER_PORT = 8189;
+    private static final boolean KEEP_ALIVE = Boolean.parseBoolean(System.getProperty("mail.client.keepAlive", "true"));
+    private static final int POOLED_CONNECTIONS = Integer.getInteger("mail.client.connections", 2);
+    private static final int WORKER_THREADS = Integer.getInteger("mail.client.workers", 4);
+    private static final int MAX_QUEUED_TASKS = Integer.getInteger("mail.client.maxQueued", 128);
+    private static final long KEEP_ALIVE_IDLE_MILLIS = Long.getLong("mail.client.keepAliveIdleMillis", 20_000L);
+    private static final long LONG_POLL_MILLIS = Long.getLong("mail.client.longPollMillis", 20_000L);
+    private static final int PAGE_SIZE = Integer.getInteger("mail.client.pageSize", 50);
+    private static final int SEARCH_RESULTS = Integer.getInteger("mail.client.searchResults", 200);
+    private static final long SEARCH_DELAY_MILLIS = 300;
+    private static final int BACKFILL_RETRIES = 3;
+    private static final long READ_MARK_WINDOW_MILLIS = Long.getLong("mail.client.readMarkWindowMillis", 300L);
+    private static final boolean SUMMARY_SYNC = Boolean.parseBoolean(System.getProperty("mail.client.summarySync", "true"));
+    private static final int BODY_CACHE_ENTRIES = Integer.getInteger("mail.client.bodyCacheEntries", 256);
+    private static final int BUSY_RETRIES = Integer.getInteger("mail.client.busyRetries", 3);
+    private static final long BUSY_BASE_BACKOFF_MILLIS = 250;
+    private static final long BUSY_MAX_BACKOFF_MILLIS = 5_000;
+    private static final long CACHE_SAVE_DELAY_MILLIS = 2_000;
+    private static final boolean ACCEPT_GZIP = Boolean.parseBoolean(System.getProperty("mail.client.acceptGzip", "true"));
+    private static final boolean BINARY_CODEC = "binary".equalsIgnoreCase(System.getProperty("mail.client.codec", "json"));
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 5_000;
+    static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
     private String userEmailAddress;
-    private Date lastUpdate = null;
-    private final ObservableList<Email> inbox;
+    private volatile Long syncSequence = null;
+    private volatile Long syncEpoch = null;
+    // false finché il server non ha confermato l'account di un login servito dalla cache locale
+    private volatile boolean verified = false;
+    private final InboxList inbox;
+    private final SearchResultList searchResults;
     private final StringProperty connectionState;
     private final StringProperty notificationMessage;
     private final Gson gson;
+    private final ServerConnection[] connections;
+    private final ServerConnection updatesConnection;
+    // condiviso con le connessioni persistenti: la prima che scopre un server solo JSON lo fa valere per tutte
+    private final AtomicBoolean binaryCodec = new AtomicBoolean(BINARY_CODEC);
+    private volatile int backfillGeneration = 0;
+    private final Set<String> deletedDuringBackfill = new HashSet<>();
+    private final Set<String> seenDuringBackfill = new HashSet<>();
+    private boolean backfillActive = false;
+    private boolean mergingBackfill = false;
+    private final LocalInboxStore localStore;
+    // stato dell'inbox locale, usato solo dal thread JavaFX
+    private Long appliedSequence = null;
+    private Long appliedEpoch = null;
+    private boolean inboxComplete = true;
+    private boolean saveScheduled = false;
+    private final ScheduledExecutorService cacheScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "inbox-cache");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<String, Email> bodyCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Email> eldest) {
+            return size() > BODY_CACHE_ENTRIES;
+        }
+    };
+    private final Set<String> pendingReadMarks = new LinkedHashSet<>();
+    private final ClientExecutor executor = new ClientExecutor(WORKER_THREADS, MAX_QUEUED_TASKS);
+    private final RefreshScheduler refreshScheduler = new RefreshScheduler();
+    private final Object refreshLock = new Object();
+    private volatile int refreshGeneration = 0;
+    private volatile int searchGeneration = 0;
+    private Future<?> nextRefresh;
     private static final Pattern EMAIL_PATTERN = Pattern.compile("^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+$");
 
     public ClientModel() {
-        this.inbox = FXCollections.observableArrayList();
+        this.inbox = new InboxList();
+        this.searchResults = new SearchResultList(inbox);
         this.connectionState = new SimpleStringProperty("Offline");
         this.notificationMessage = new SimpleStringProperty("");
         this.gson = new Gson();
+        this.localStore = LocalInboxStore.defaultStore(gson);
+        this.connections = new ServerConnection[KEEP_ALIVE ? Math.max(1, POOLED_CONNECTIONS) : 0];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new ServerConnection(SERVER_IP, SERVER_PORT, KEEP_ALIVE_IDLE_MILLIS, binaryCodec, gson);
+        }
+        this.updatesConnection = new ServerConnection(SERVER_IP, SERVER_PORT, KEEP_ALIVE_IDLE_MILLIS, binaryCodec, gson);
     }
 
     public ObservableList<Email> getInbox() { return inbox; }
+    public ObservableList<Email> getSearchResults() { return searchResults; }
     public StringProperty connectionStateProperty() { return connectionState; }
     public StringProperty notificationMessageProperty() { return notificationMessage; }
+
+    /**
+     * True mentre l'inbox riceve una pagina di backfill: sono messaggi già presenti sul server, non nuovi arrivi.
+     * Va letto sul thread JavaFX, da un listener dell'inbox.
+     */
+    public boolean isMergingBackfill() { return mergingBackfill; }
     public String getUserEmailAddress() { return userEmailAddress; }
 
+    /**
+     * Filtra getSearchResults con la query (parole o prefissi di parole di mittente, oggetto e testo);
+     * una query vuota mostra tutta l'inbox. Va chiamato sul thread JavaFX.
+     * In locale il testo è indicizzato solo per i messaggi già aperti: poco dopo l'ultima modifica della query
+     * i risultati vengono completati con SEARCH sul server.
+     */
+    public void search(String query) {
+        int generation = ++searchGeneration;
+        Set<String> hits = inbox.search(query);
+        // la vista si costruisce dagli id trovati, senza applicare un filtro a ogni messaggio dell'inbox
+        if (hits == null) {
+            searchResults.showAll();
+        } else {
+            searchResults.show(hits, hits::contains);
+        }
+
+        String user = userEmailAddress;
+        if (hits == null || user == null) return;
+        executor.schedule(ClientExecutor.Priority.USER, () -> searchOnServer(user, query, hits, generation), SEARCH_DELAY_MILLIS);
+    }
+
+    private void searchOnServer(String user, String query, Set<String> localHits, int generation) {
+        if (generation != searchGeneration) return;
+        Packet request = new Packet("SEARCH", user);
+        request.setQuery(query);
+        request.setSummary(true);
+        request.setPageSize(SEARCH_RESULTS);
+        Packet response = sendRequest(request);
+        // un server senza SEARCH o non raggiungibile lascia i soli risultati locali
+        if (response == null || !"OK".equals(response.getOutcomeCode()) || response.getEmailList() == null) return;
+
+        Set<String> serverHits = new HashSet<>();
+        for (Email email : response.getEmailList()) serverHits.add(email.getId());
+        Platform.runLater(() -> {
+            if (generation != searchGeneration) return;
+            Set<String> ids = new HashSet<>(localHits);
+            ids.addAll(serverHits);
+            searchResults.show(ids, id -> localHits.contains(id) || serverHits.contains(id));
+        });
+    }
+
+    /**
+     * Esegue un'azione dell'utente (login, invio, cancellazione...) sui thread del client, prima degli aggiornamenti
+     * in background. Restituisce false se ci sono già troppe operazioni in coda.
+     */
+    public boolean runAction(Runnable action) {
+        try {
+            executor.submit(ClientExecutor.Priority.USER, action);
+            return true;
+        } catch (RejectedExecutionException e) {
+            setNotification("Troppe operazioni in corso, riprova tra poco.");
+            return false;
+        }
+    }
+
+    /**
+     * Esegue un aggiornamento in background dopo delayMillis. Viene annullato dal logout.
+     */
+    public Future<?> runInBackground(Runnable action, long delayMillis) {
+        try {
+            return executor.schedule(ClientExecutor.Priority.BACKGROUND, action, delayMillis);
+        } catch (RejectedExecutionException e) {
+            return executor.schedule(ClientExecutor.Priority.BACKGROUND, action, BUSY_BASE_BACKOFF_MILLIS);
+        }
+    }
+
     public boolean login(String email) {
         if (!isValidEmail(email)) {
             setNotification("Formato email non valido!");
             return false;
         }
 
-        this.lastUpdate = null;
-        this.inbox.clear();
+        this.syncSequence = null;
+        this.syncEpoch = null;
+        this.verified = false;
+        Platform.runLater(inbox::clear);
+        int generation = ++backfillGeneration;
 
-        Packet request = new Packet("GET_UPDATES", email);
-        request.setLastUpdateDate(null);
+        // Con una copia locale l'inbox viene mostrata subito e la sincronizzazione prosegue in background;
+        // finché il server non conferma l'account la sessione resta offline e non verificata
+        LocalInboxStore.Snapshot cached = localStore.load(email);
+        if (cached != null) {
+            this.userEmailAddress = email;
+            this.syncSequence = cached.getSequence();
+            this.syncEpoch = cached.getEpoch();
+            Platform.runLater(() -> {
+                if (generation != backfillGeneration) return;
+                inbox.setAll(cached.getEmails());
+                appliedSequence = cached.getSequence();
+                appliedEpoch = cached.getEpoch();
+                inboxComplete = true;
+            });
+            setConnectionState("Offline (accesso non ancora verificato)");
+            setNotification("Inbox locale, in attesa di conferma dal server...");
+
+            runAction(() -> syncCachedInbox(email, cached.getEpoch(), cached.getSequence(), generation));
+            return true;
+        }
 
-        Packet response = sendRequest(request);
+        Packet response = sendRequest(initialSyncRequest(email, null, null));
 
         if (response != null && "OK".equals(response.getOutcomeCode())) {
             this.userEmailAddress = email;
+            this.verified = true;
             setConnectionState("Connesso: " + email);
             setNotification("Login effettuato.");
 
-            List<Email> initialEmails = response.getEmailList();
-            if (initialEmails != null) {
-                Platform.runLater(() -> addNewEmailsLocal(initialEmails));
+            Platform.runLater(() -> {
+                appliedSequence = null;
+                inboxComplete = true;
+                applyUpdates(response);
+            });
+            if (response.getPageCursor() != null) {
+                startBackfill(email, response.getPageCursor(), generation);
             }
             return true;
         } else {
@@ -77,32 +258,293 @@ public class ClientModel {
         }
     }
 
+    /**
+     * Chiusura dell'applicazione: invia le segnalazioni di lettura in sospeso e salva subito l'inbox locale.
+     * Va chiamato sul thread JavaFX.
+     */
+    public void close() {
+        String user = this.userEmailAddress;
+        if (user == null) return;
+        flushReadMarks(user);
+        if (!backfillActive) {
+            localStore.save(user, appliedEpoch, inboxComplete ? appliedSequence : null, new ArrayList<>(inbox));
+        }
+    }
+
+    private Packet initialSyncRequest(String user, Long sequence, Long epoch) {
+        Packet request = new Packet("GET_UPDATES", user);
+        request.setSummary(SUMMARY_SYNC);
+        request.setSequence(sequence);
+        request.setEpoch(epoch);
+        request.setPageSize(PAGE_SIZE);
+        return request;
+    }
+
+    /**
+     * Prima sincronizzazione dopo un login servito dalla cache locale: di norma solo le modifiche
+     * successive al cursore salvato, oppure una sincronizzazione completa se il server non lo conosce più.
+     * Se l'epoch del server è cambiata la copia locale viene scartata: le sue sequenze non sono più confrontabili.
+     * Se il server rifiuta l'account la copia locale viene eliminata e la sessione resta offline.
+     */
+    private void syncCachedInbox(String user, Long epoch, Long sequence, int generation) {
+        Packet response = sendRequest(initialSyncRequest(user, sequence, epoch));
+        if (generation != backfillGeneration) return;
+
+        if (response != null && "OK".equals(response.getOutcomeCode())) {
+            this.verified = true;
+            setConnectionState("Connesso: " + user);
+            setNotification("Login effettuato.");
+            boolean discard = !Objects.equals(epoch, response.getEpoch());
+            Platform.runLater(() -> {
+                if (generation != backfillGeneration) return;
+                if (discard) inbox.clear();
+                applyUpdates(response);
+            });
+            if (response.getPageCursor() != null) {
+                startBackfill(user, response.getPageCursor(), generation);
+            }
+        } else if (response != null && !isBusy(response)) {
+            this.userEmailAddress = null;
+            this.backfillGeneration++;
+            stopAutoRefresh();
+            localStore.discard(user);
+            Platform.runLater(inbox::clear);
+            setConnectionState("Offline (accesso non verificato)");
+            setNotification(response.getOutcomeMessage() != null ? response.getOutcomeMessage() : "Errore login o utente inesistente.");
+        } else {
+            setConnectionState("Offline (accesso non ancora verificato): server non raggiungibile");
+        }
+    }
+
+    /**
+     * False dopo un login servito dalla cache locale, finché il server non ha confermato l'account.
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+
+    /**
+     * Annulla le operazioni in corso e in coda della sessione; le segnalazioni di lettura raccolte vengono comunque inviate.
+     */
     public void logout() {
+        String user = this.userEmailAddress;
+        if (user != null) saveLocalInbox(user);
         this.userEmailAddress = null;
-        this.lastUpdate = null;
+        this.syncSequence = null;
+        this.syncEpoch = null;
+        this.verified = false;
+        this.appliedSequence = null;
+        this.appliedEpoch = null;
+        this.backfillGeneration++;
+        this.backfillActive = false;
+        stopAutoRefresh();
+        executor.cancelAll();
+        runAction(() -> flushReadMarks(user));
         this.inbox.clear();
+        synchronized (bodyCache) {
+            bodyCache.clear();
+        }
+        updatesConnection.close();
         setConnectionState("Offline");
         setNotification("Disconnesso.");
     }
 
-    public void refreshInbox() {
-        if (userEmailAddress == null) return;
+    /**
+     * Avvia il ciclo di aggiornamento dell'inbox; la cadenza è decisa da RefreshScheduler in base all'esito
+     * di ogni aggiornamento e lo stato della connessione viene riportato in connectionState.
+     */
+    public void startAutoRefresh() {
+        synchronized (refreshLock) {
+            int generation = ++refreshGeneration;
+            refreshScheduler.reset();
+            scheduleRefresh(generation, 0);
+        }
+    }
 
-        Packet request = new Packet("GET_UPDATES", userEmailAddress);
-        request.setLastUpdateDate(this.lastUpdate);
+    public void stopAutoRefresh() {
+        synchronized (refreshLock) {
+            refreshGeneration++;
+            if (nextRefresh != null) nextRefresh.cancel(false);
+            nextRefresh = null;
+        }
+    }
 
-        Packet response = sendRequest(request);
+    /**
+     * Con la finestra inattiva gli aggiornamenti vengono diradati; quando torna attiva,
+     * un aggiornamento rimandato per inattività viene eseguito subito.
+     */
+    public void setWindowActive(boolean active) {
+        refreshScheduler.setActive(active);
+        if (!active) return;
+        synchronized (refreshLock) {
+            if (nextRefresh != null && refreshScheduler.isIdleWait() && nextRefresh.cancel(false)) {
+                scheduleRefresh(refreshGeneration, 0);
+            }
+        }
+    }
 
-        if (response != null && "OK".equals(response.getOutcomeCode())) {
+    private void scheduleRefresh(int generation, long delayMillis) {
+        synchronized (refreshLock) {
+            if (generation != refreshGeneration) return;
+            nextRefresh = runInBackground(() -> refresh(generation), delayMillis);
+        }
+    }
 
-            Platform.runLater(() -> connectionState.set("Connesso: " + userEmailAddress));
+    /**
+     * Un aggiornamento: long-poll sulla connessione dedicata, il server risponde appena la mailbox cambia
+     * o allo scadere dell'attesa. Se il server non supporta WAIT_UPDATES si usa un normale GET_UPDATES.
+     * Le risposte BUSY non vengono ripetute qui: l'attesa la decide il RefreshScheduler.
+     */
+    private void refresh(int generation) {
+        String user = userEmailAddress;
+        if (user == null || generation != refreshGeneration) return;
+
+        boolean longPoll = true;
+        Packet request = new Packet("WAIT_UPDATES", user);
+        request.setSummary(SUMMARY_SYNC);
+        request.setSequence(this.syncSequence);
+        request.setEpoch(this.syncEpoch);
+        request.setWaitMillis(LONG_POLL_MILLIS);
+        Packet response = sendUpdatesRequest(request);
+
+        if (response != null && !"OK".equals(response.getOutcomeCode()) && !isBusy(response)) {
+            longPoll = false;
+            request = new Packet("GET_UPDATES", user);
+            request.setSummary(SUMMARY_SYNC);
+            request.setSequence(this.syncSequence);
+            request.setEpoch(this.syncEpoch);
+            response = sendOnce(request);
+        }
+        if (generation != refreshGeneration || !user.equals(userEmailAddress)) return;
 
-            List<Email> newEmails = response.getEmailList();
-            if (newEmails != null && !newEmails.isEmpty()) {
-                Platform.runLater(() -> addNewEmailsLocal(newEmails));
+        RefreshScheduler.Outcome outcome;
+        if (response == null || (!"OK".equals(response.getOutcomeCode()) && !isBusy(response))) {
+            outcome = RefreshScheduler.Outcome.OFFLINE;
+        } else if (isBusy(response)) {
+            outcome = RefreshScheduler.Outcome.BUSY;
+        } else {
+            Packet updates = response;
+            if (updates.getSequence() != null) {
+                this.syncSequence = updates.getSequence();
+                this.syncEpoch = updates.getEpoch();
             }
+            this.verified = true;
+            setConnectionState("Connesso: " + user);
+            Platform.runLater(() -> applyUpdates(updates));
+            boolean newMail = updates.getEmailList() != null && !updates.getEmailList().isEmpty();
+            outcome = newMail ? RefreshScheduler.Outcome.NEW_MAIL : RefreshScheduler.Outcome.NO_NEW_MAIL;
+        }
+
+        long delay = refreshScheduler.nextDelay(outcome, longPoll, response != null ? response.getRetryAfterMillis() : null);
+        if (outcome == RefreshScheduler.Outcome.OFFLINE) {
+            setConnectionState("Errore di Connessione (Server Offline), nuovo tentativo tra " + (delay + 999) / 1000 + " s");
+        }
+        scheduleRefresh(generation, delay);
+    }
+
+    /**
+     * Scarica in background le pagine più vecchie della sincronizzazione iniziale, mentre l'utente
+     * vede già i messaggi più recenti. Ogni pagina è un compito a bassa priorità, così le azioni dell'utente
+     * non aspettano la fine del backfill. Si interrompe se nel frattempo l'utente cambia o esce.
+     */
+    private void startBackfill(String user, String firstCursor, int generation) {
+        runInBackground(() -> backfillPage(user, firstCursor, generation, 0), 0);
+    }
+
+    private void backfillPage(String user, String cursor, int generation, int failures) {
+        if (generation != backfillGeneration) return;
+
+        Packet request = new Packet("GET_UPDATES", user);
+        request.setSummary(SUMMARY_SYNC);
+        request.setPageCursor(cursor);
+        request.setPageSize(PAGE_SIZE);
+
+        Packet response = sendRequest(request);
+        if (generation != backfillGeneration) return;
+        if (response == null || !"OK".equals(response.getOutcomeCode())) {
+            if (failures >= BACKFILL_RETRIES) {
+                setNotification("Impossibile scaricare i messaggi meno recenti.");
+                endBackfill(generation, false);
+            } else {
+                runInBackground(() -> backfillPage(user, cursor, generation, failures + 1), 1000L * (failures + 1));
+            }
+            return;
+        }
+
+        List<Email> page = response.getEmailList();
+        Platform.runLater(() -> {
+            if (generation != backfillGeneration || page == null) return;
+            List<Email> kept = new ArrayList<>(page);
+            kept.removeIf(e -> deletedDuringBackfill.contains(e.getId()));
+            for (Email email : kept) seenDuringBackfill.add(email.getId());
+            mergingBackfill = true;
+            try {
+                addNewEmailsLocal(kept);
+            } finally {
+                mergingBackfill = false;
+            }
+        });
+        String next = response.getPageCursor();
+        if (next != null) {
+            runInBackground(() -> backfillPage(user, next, generation, 0), 0);
         } else {
-            Platform.runLater(() -> connectionState.set("Errore di Connessione (Server Offline)"));
+            endBackfill(generation, true);
+        }
+    }
+
+    private void endBackfill(int generation, boolean complete) {
+        Platform.runLater(() -> {
+            if (generation == backfillGeneration) finishBackfill(complete);
+        });
+    }
+
+    /**
+     * Chiamato sul thread JavaFX al termine del backfill. Se tutte le pagine sono arrivate, i messaggi
+     * locali (per esempio dalla cache) che il server non ha più vengono rimossi.
+     */
+    private void finishBackfill(boolean complete) {
+        if (complete) {
+            inbox.removeIf(existing -> !seenDuringBackfill.contains(existing.getId()));
+            inboxComplete = true;
+        }
+        backfillActive = false;
+        deletedDuringBackfill.clear();
+        seenDuringBackfill.clear();
+        scheduleSave();
+    }
+
+    /**
+     * Salva l'inbox locale poco dopo l'ultima modifica, raggruppando le modifiche ravvicinate.
+     * Va chiamato sul thread JavaFX.
+     */
+    private void scheduleSave() {
+        if (saveScheduled || userEmailAddress == null) return;
+        saveScheduled = true;
+        cacheScheduler.schedule(() -> Platform.runLater(() -> {
+            saveScheduled = false;
+            String user = userEmailAddress;
+            if (user != null && !backfillActive) saveLocalInbox(user);
+        }), CACHE_SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Se l'inbox non è completa (backfill interrotto) il cursore non viene salvato,
+     * così al prossimo login il server invia di nuovo tutti i messaggi.
+     */
+    private void saveLocalInbox(String user) {
+        if (backfillActive) return;
+        List<Email> snapshot = new ArrayList<>(inbox);
+        Long epoch = appliedEpoch;
+        Long sequence = inboxComplete ? appliedSequence : null;
+        cacheScheduler.execute(() -> localStore.save(user, epoch, sequence, snapshot));
+    }
+
+    private Packet sendUpdatesRequest(Packet request) {
+        if (ACCEPT_GZIP) request.setAcceptEncoding(PacketCompression.GZIP);
+        try {
+            return updatesConnection.send(request, true);
+        } catch (IOException e) {
+            return null;
         }
     }
 
@@ -174,17 +616,80 @@ public class ClientModel {
 
         if (response != null && "OK".equals(response.getOutcomeCode())) {
             setNotification("Email cancellata.");
-            Platform.runLater(() -> inbox.remove(emailToDelete));
+            Platform.runLater(() -> {
+                if (backfillActive) deletedDuringBackfill.add(emailToDelete.getId());
+                inbox.remove(emailToDelete);
+                scheduleSave();
+            });
         } else {
             setNotification("Errore cancellazione.");
         }
     }
 
+    /**
+     * Restituisce l'email completa (testo e destinatari) se è già disponibile localmente, altrimenti null.
+     */
+    public Email getLoadedEmail(Email email) {
+        if (email == null || !email.isSummary()) return email;
+        synchronized (bodyCache) {
+            return bodyCache.get(email.getId());
+        }
+    }
+
+    /**
+     * Come getLoadedEmail, ma se serve richiede il corpo al server con FETCH_EMAIL (chiamata bloccante).
+     * Restituisce null se il server non è raggiungibile o l'email non esiste più.
+     */
+    public Email fetchEmail(Email email) {
+        Email loaded = getLoadedEmail(email);
+        String user = userEmailAddress;
+        if (loaded != null || user == null) return loaded;
+
+        Packet request = new Packet("FETCH_EMAIL", user);
+        request.setEmailIds(List.of(email.getId()));
+        Packet response = sendRequest(request);
+        if (response == null || !"OK".equals(response.getOutcomeCode())
+                || response.getEmailList() == null || response.getEmailList().isEmpty()) {
+            setNotification(response != null && response.getOutcomeMessage() != null
+                    ? response.getOutcomeMessage()
+                    : "Impossibile scaricare il messaggio.");
+            return null;
+        }
+        Email full = response.getEmailList().get(0);
+        synchronized (bodyCache) {
+            bodyCache.put(full.getId(), full);
+        }
+        Platform.runLater(() -> inbox.indexText(full));
+        return full;
+    }
+
+    /**
+     * Le segnalazioni di lettura vengono raccolte per READ_MARK_WINDOW_MILLIS e inviate in un'unica richiesta.
+     */
     public void markEmailAsRead(Email email) {
         if (userEmailAddress == null || email == null) return;
-        Packet request = new Packet("MARK_AS_READ", userEmailAddress);
-        request.setEmail(email);
-        new Thread(() -> sendRequest(request)).start();
+        if (Platform.isFxApplicationThread()) scheduleSave();
+        synchronized (pendingReadMarks) {
+            boolean schedule = pendingReadMarks.isEmpty();
+            pendingReadMarks.add(email.getId());
+            if (schedule) {
+                String user = userEmailAddress;
+                executor.schedule(ClientExecutor.Priority.USER, () -> flushReadMarks(user), READ_MARK_WINDOW_MILLIS);
+            }
+        }
+    }
+
+    private void flushReadMarks(String user) {
+        List<String> ids;
+        synchronized (pendingReadMarks) {
+            ids = new ArrayList<>(pendingReadMarks);
+            pendingReadMarks.clear();
+        }
+        if (ids.isEmpty() || user == null) return;
+
+        Packet request = new Packet("MARK_AS_READ", user);
+        request.setEmailIds(ids);
+        sendRequest(request);
     }
 
     private boolean isValidEmail(String email) {
@@ -199,31 +704,131 @@ public class ClientModel {
         Platform.runLater(() -> connectionState.set(text));
     }
 
-    private void addNewEmailsLocal(List<Email> newEmails) {
-        if (newEmails == null || newEmails.isEmpty()) return;
-        boolean listChanged = false;
-        for (Email email : newEmails) {
-            boolean alreadyExists = this.inbox.stream().anyMatch(existing -> existing.getId().equals(email.getId()));
-            if (!alreadyExists) {
-                this.inbox.add(email);
-                listChanged = true;
+    private void applyUpdates(Packet response) {
+        List<Email> emails = response.getEmailList() != null ? response.getEmailList() : new ArrayList<>();
+
+        Set<String> deletedIds = new HashSet<>();
+        if (response.getDeletedIds() != null) deletedIds.addAll(response.getDeletedIds());
+
+        Set<String> readIds = new HashSet<>();
+        if (response.getReadIds() != null) readIds.addAll(response.getReadIds());
+
+        if (response.isFullSync()) {
+            Set<String> serverIds = new HashSet<>();
+            for (Email email : emails) {
+                serverIds.add(email.getId());
+                if (email.isRead()) readIds.add(email.getId());
+            }
+            // Una sincronizzazione paginata contiene solo i messaggi più recenti: il resto arriva dal backfill,
+            // al termine del quale vengono rimossi i messaggi locali che il server non ha inviato
+            if (response.getPageCursor() == null) {
+                this.inbox.removeIf(existing -> !serverIds.contains(existing.getId()));
+            } else {
+                backfillActive = true;
+                inboxComplete = false;
+                deletedDuringBackfill.clear();
+                seenDuringBackfill.clear();
+                seenDuringBackfill.addAll(serverIds);
             }
+        } else if (backfillActive) {
+            for (Email email : emails) seenDuringBackfill.add(email.getId());
         }
-        if (listChanged) {
-            this.inbox.sort(Comparator.comparing(Email::getTimestamp).reversed());
-            if (!this.inbox.isEmpty()) {
-                this.lastUpdate = this.inbox.get(0).getTimestamp();
+
+        if (!deletedIds.isEmpty()) {
+            if (backfillActive) this.deletedDuringBackfill.addAll(deletedIds);
+            this.inbox.removeIf(existing -> deletedIds.contains(existing.getId()));
+        }
+
+        if (!readIds.isEmpty()) {
+            List<Email> changed = new ArrayList<>();
+            for (String id : readIds) {
+                Email existing = this.inbox.getById(id);
+                if (existing != null && !existing.isRead()) {
+                    existing.setRead(true);
+                    changed.add(existing);
+                }
             }
+            if (!changed.isEmpty()) this.inbox.refresh(changed);
+        }
+
+        addNewEmailsLocal(emails);
+
+        if (response.getSequence() != null) {
+            this.syncSequence = response.getSequence();
+            this.syncEpoch = response.getEpoch();
+            this.appliedSequence = response.getSequence();
+            this.appliedEpoch = response.getEpoch();
         }
+        scheduleSave();
+    }
+
+    private void addNewEmailsLocal(List<Email> newEmails) {
+        if (newEmails == null || newEmails.isEmpty()) return;
+        this.inbox.merge(newEmails);
     }
 
+    /**
+     * Invia la richiesta ripetendola, con attesa crescente, finché il server risponde BUSY.
+     * Le richieste rifiutate con BUSY non sono state eseguite, quindi ripeterle è sicuro anche per SEND_EMAIL.
+     */
     private Packet sendRequest(Packet request) {
+        Packet response = sendOnce(request);
+        for (int attempt = 0; attempt < BUSY_RETRIES && response != null && isBusy(response); attempt++) {
+            try {
+                Thread.sleep(backoffMillis(response.getRetryAfterMillis(), attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            response = sendOnce(request);
+        }
+        return response;
+    }
+
+    private static boolean isBusy(Packet response) {
+        return "BUSY".equals(response.getOutcomeCode());
+    }
+
+    /**
+     * Attesa prima del tentativo successivo: almeno quanto indicato dal server, raddoppiata a ogni tentativo,
+     * con una componente casuale perché i client respinti insieme non ritornino tutti nello stesso istante.
+     */
+    static long backoffMillis(Long retryAfterMillis, int attempt) {
+        long base = Math.max(retryAfterMillis != null ? retryAfterMillis : 0, BUSY_BASE_BACKOFF_MILLIS << Math.min(attempt, 10));
+        base = Math.min(base, BUSY_MAX_BACKOFF_MILLIS);
+        return base + ThreadLocalRandom.current().nextLong(base / 2 + 1);
+    }
+
+    private Packet sendOnce(Packet request) {
+        if (ACCEPT_GZIP) request.setAcceptEncoding(PacketCompression.GZIP);
+        if (connections.length > 0) {
+            try {
+                return pooledConnection().send(request, !"SEND_EMAIL".equals(request.getCommand()));
+            } catch (IOException e) {
+                System.err.println("Errore I/O durante la comunicazione: " + e.getMessage());
+                return null;
+            }
+        }
+
+        if (binaryCodec.get()) {
+            try {
+                Packet response = sendBinaryRequest(request);
+                if (response != null) return response;
+                if (binaryCodec.compareAndSet(true, false)) {
+                    System.err.println("Il server non supporta la codifica binaria, uso JSON.");
+                }
+            } catch (IOException e) {
+                System.err.println("Errore I/O durante la comunicazione: " + e.getMessage());
+                return null;
+            }
+        }
+
         try (Socket socket = new Socket(SERVER_IP, SERVER_PORT);
              PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
 
             out.println(gson.toJson(request));
-            String jsonResponse = in.readLine();
+            String jsonResponse = PacketCompression.decodeLine(in.readLine(), MAX_RESPONSE_BYTES);
             if (jsonResponse != null) {
                 return gson.fromJson(jsonResponse, Packet.class);
             }
@@ -233,4 +838,40 @@ public class ClientModel {
         }
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Connessione del pool con meno richieste in attesa: una risposta lunga (per esempio una sincronizzazione completa)
+     * non ritarda le richieste brevi inviate nel frattempo.
+     */
+    private ServerConnection pooledConnection() {
+        ServerConnection best = connections[0];
+        for (int i = 1; i < connections.length; i++) {
+            if (connections[i].pendingRequests() < best.pendingRequests()) best = connections[i];
+        }
+        return best;
+    }
+
+    /**
+     * Invia il preambolo binario insieme alla richiesta; restituisce null se il server non lo conferma.
+     */
+    private Packet sendBinaryRequest(Packet request) throws IOException {
+        try (Socket socket = new Socket(SERVER_IP, SERVER_PORT)) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(BinaryCodec.PREAMBLE);
+            BinaryCodec.writeFrame(out, request);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            try {
+                if (!BinaryCodec.isPreamble(in.readNBytes(BinaryCodec.PREAMBLE.length))) return null;
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            socket.setSoTimeout(0);
+
+            Packet response = BinaryCodec.readFrame(in, MAX_RESPONSE_BYTES);
+            if (response == null) throw new IOException("Connessione chiusa dal server");
+            return response;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package it.unito.mailclient.model;
+
+import it.unito.mail.common.Email;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Confronta l'aggiornamento dell'inbox con InboxList.merge e con l'approccio precedente
+ * (ricerca lineare per id di ogni messaggio e riordino completo della lista dopo ogni sincronizzazione),
+ * e la ricerca con SearchResultList rispetto a un FilteredList che applica il filtro a ogni messaggio.
+ * Uso: InboxBenchmark [messaggi] [nuoviPerSincronizzazione]
+ */
+public class InboxBenchmark {
+
+    private static final int ROUNDS = 200;
+    private static final int WARMUP_ROUNDS = 50;
+
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Random random = new Random(42);
+        List<Email> existing = generate(messages, random);
+        List<List<Email>> batches = new ArrayList<>(WARMUP_ROUNDS + ROUNDS);
+        for (int i = 0; i < WARMUP_ROUNDS + ROUNDS; i++) {
+            batches.add(generate(batchSize, random));
+        }
+
+        System.out.printf("%d messaggi, %d sincronizzazioni da %d%n", messages, ROUNDS, batchSize);
+        System.out.printf("%-10s %12s%n", "metodo", "ms/sinc.");
+
+        InboxList inbox = new InboxList();
+        inbox.setAll(existing);
+        print("merge", time(batches, inbox::merge));
+
+        ObservableList<Email> plain = FXCollections.observableArrayList(existing);
+        Comparator<Email> newestFirst = Comparator.comparing(Email::getTimestamp).reversed();
+        print("lineare", time(batches, batch -> {
+            for (Email email : batch) {
+                if (plain.stream().noneMatch(e -> e.getId().equals(email.getId()))) plain.add(email);
+            }
+            FXCollections.sort(plain, newestFirst);
+        }));
+
+        // una query per tasto premuto, come scrivendo nel campo di ricerca
+        List<String> keystrokes = List.of("o", "og", "ogg", "ogge", "oggetto", "oggetto 1", "oggetto 12", "oggetto 123");
+        System.out.printf("%-10s %12s %10s%n", "ricerca", "ms/tasto", "risultati");
+        // la vista ordina i risultati con una SortedList, come la tabella
+        SearchResultList results = new SearchResultList(inbox);
+        SortedList<Email> shown = new SortedList<>(results);
+        double indexMillis = timeSearch(keystrokes, query -> {
+            Set<String> hits = inbox.search(query);
+            results.show(hits, hits::contains);
+        });
+        printSearch("indice", indexMillis, shown.size());
+
+        FilteredList<Email> filtered = new FilteredList<>(inbox);
+        SortedList<Email> shownFiltered = new SortedList<>(filtered);
+        double filterMillis = timeSearch(keystrokes, query -> {
+            Set<String> hits = inbox.search(query);
+            filtered.setPredicate(email -> hits.contains(email.getId()));
+        });
+        printSearch("filtro", filterMillis, shownFiltered.size());
+    }
+
+    private static double timeSearch(List<String> keystrokes, Consumer<String> search) {
+        for (int i = 0; i < WARMUP_ROUNDS / 10; i++) {
+            keystrokes.forEach(search);
+        }
+        int rounds = ROUNDS / 10;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            keystrokes.forEach(search);
+        }
+        return (System.nanoTime() - start) / 1_000_000.0 / (rounds * keystrokes.size());
+    }
+
+    private interface Sync {
+        void apply(List<Email> batch);
+    }
+
+    private static double time(List<List<Email>> batches, Sync sync) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sync.apply(batches.get(i));
+        }
+        long start = System.nanoTime();
+        for (int i = WARMUP_ROUNDS; i < batches.size(); i++) {
+            sync.apply(batches.get(i));
+        }
+        return (System.nanoTime() - start) / 1_000_000.0 / ROUNDS;
+    }
+
+    private static void print(String name, double millis) {
+        System.out.printf("%-10s %12.3f%n", name, millis);
+    }
+
+    private static void printSearch(String name, double millis, int results) {
+        System.out.printf("%-10s %12.3f %10d%n", name, millis, results);
+    }
+
+    private static List<Email> generate(int count, Random random) {
+        List<Email> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Email email = new Email("user" + (1 + random.nextInt(3)) + "@mail.com", List.of("user1@mail.com"),
+                    "oggetto " + i, null);
+            email.setTimestamp(new Date(1_700_000_000_000L + random.nextInt(1_000_000_000)));
+            emails.add(email);
+        }
+        return emails;
+    }
+}
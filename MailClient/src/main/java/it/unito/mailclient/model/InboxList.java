@@ -0,0 +1,243 @@
+package it.unito.mailclient.model;
+
+import it.unito.mail.common.Email;
+import javafx.collections.ModifiableObservableListBase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Lista osservabile dell'inbox, sempre ordinata dal messaggio più recente, con indice per id.
+ * I nuovi messaggi vengono inseriti con una fusione ordinata e notificati con un unico evento,
+ * così una sincronizzazione costa una copia della lista e O(k log n) confronti, invece di una ricerca lineare
+ * per messaggio e un riordino completo.
+ * L'ordine è fisso: gli inserimenti in una posizione diversa da quella ordinata vengono rifiutati, e la vista
+ * che vuole un altro ordinamento usa una SortedList sopra questa lista.
+ * Mantiene anche l'indice di ricerca sui messaggi contenuti.
+ * Va usata solo dal thread JavaFX.
+ */
+class InboxList extends ModifiableObservableListBase<Email> {
+
+    static final Comparator<Email> NEWEST_FIRST = Comparator
+            .comparing(Email::getTimestamp, Comparator.nullsLast(Comparator.<Date>reverseOrder()))
+            .thenComparing(Email::getId, Comparator.nullsLast(Comparator.<String>reverseOrder()));
+
+    private List<Email> items = new ArrayList<>();
+    private final Map<String, Email> byId = new HashMap<>();
+    private final InboxSearchIndex searchIndex = new InboxSearchIndex();
+
+    @Override
+    public Email get(int index) {
+        return items.get(index);
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    boolean containsId(String id) {
+        return byId.containsKey(id);
+    }
+
+    Email getById(String id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Vedi InboxSearchIndex.search: id dei messaggi che corrispondono alla query, aggiornati con l'inbox.
+     */
+    Set<String> search(String query) {
+        return searchIndex.search(query);
+    }
+
+    /**
+     * Indicizza il testo di un messaggio scaricato dopo la sincronizzazione delle sole intestazioni.
+     */
+    void indexText(Email full) {
+        Email existing = byId.get(full.getId());
+        if (existing == null || full.getText() == null) return;
+        searchIndex.add(full);
+        refresh(List.of(existing));
+    }
+
+    /**
+     * Inserisce i messaggi non ancora presenti nella posizione corretta; restituisce quanti ne ha aggiunti.
+     */
+    int merge(Collection<Email> emails) {
+        List<Email> batch = new ArrayList<>(emails.size());
+        Map<String, Email> batchIds = new HashMap<>();
+        for (Email email : emails) {
+            if (email.getId() != null && !byId.containsKey(email.getId()) && batchIds.putIfAbsent(email.getId(), email) == null) {
+                batch.add(email);
+            }
+        }
+        if (batch.isEmpty()) return 0;
+        batch.sort(NEWEST_FIRST);
+
+        List<Email> merged = new ArrayList<>(items.size() + batch.size());
+        beginChange();
+        try {
+            // per ogni gruppo di nuovi messaggi contigui si cerca il punto di inserimento con una ricerca binaria
+            // e si copiano in blocco i messaggi esistenti che lo precedono
+            int copied = 0;
+            int j = 0;
+            while (j < batch.size()) {
+                int position = -Collections.binarySearch(items, batch.get(j), NEWEST_FIRST) - 1;
+                merged.addAll(items.subList(copied, position));
+                copied = position;
+                int from = merged.size();
+                while (j < batch.size() && (copied == items.size() || NEWEST_FIRST.compare(batch.get(j), items.get(copied)) < 0)) {
+                    merged.add(batch.get(j++));
+                }
+                nextAdd(from, merged.size());
+            }
+            merged.addAll(items.subList(copied, items.size()));
+            items = merged;
+            byId.putAll(batchIds);
+            for (Email email : batch) searchIndex.add(email);
+            modCount++;
+        } finally {
+            endChange();
+        }
+        return batch.size();
+    }
+
+    /**
+     * Notifica come sostituiti i messaggi indicati (per esempio dopo un cambio dello stato di lettura),
+     * così le celle che li mostrano vengono ridisegnate.
+     */
+    void refresh(Collection<Email> emails) {
+        beginChange();
+        try {
+            for (Email email : emails) {
+                int index = positionOf(email);
+                if (index >= 0) nextSet(index, email);
+            }
+        } finally {
+            endChange();
+        }
+    }
+
+    /**
+     * Posizione del messaggio con ricerca binaria sull'ordinamento, oppure -1.
+     */
+    int positionOf(Email email) {
+        if (email == null || byId.get(email.getId()) != email) return -1;
+        int index = Collections.binarySearch(items, email, NEWEST_FIRST);
+        return index >= 0 && items.get(index) == email ? index : -1;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return o instanceof Email email ? positionOf(email) : -1;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super Email> filter) {
+        List<Email> kept = new ArrayList<>(items.size());
+        beginChange();
+        try {
+            for (Email email : items) {
+                if (filter.test(email)) {
+                    nextRemove(kept.size(), email);
+                    byId.remove(email.getId());
+                    searchIndex.remove(email.getId());
+                } else {
+                    kept.add(email);
+                }
+            }
+            if (kept.size() == items.size()) return false;
+            items = kept;
+            modCount++;
+            return true;
+        } finally {
+            endChange();
+        }
+    }
+
+    /**
+     * Sostituisce il contenuto mantenendo l'ordinamento.
+     */
+    @Override
+    public boolean setAll(Collection<? extends Email> emails) {
+        List<Email> sorted = new ArrayList<>(emails);
+        sorted.sort(NEWEST_FIRST);
+        beginChange();
+        try {
+            if (!items.isEmpty()) nextRemove(0, items);
+            items = sorted;
+            byId.clear();
+            searchIndex.clear();
+            for (Email email : sorted) {
+                byId.put(email.getId(), email);
+                searchIndex.add(email);
+            }
+            if (!sorted.isEmpty()) nextAdd(0, sorted.size());
+            modCount++;
+        } finally {
+            endChange();
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        setAll(List.of());
+    }
+
+    /**
+     * Inserisce il messaggio nella posizione ordinata.
+     */
+    @Override
+    public boolean add(Email email) {
+        return merge(List.of(email)) > 0;
+    }
+
+    @Override
+    protected void doAdd(int index, Email element) {
+        if (byId.containsKey(element.getId()) || !fitsBetween(index - 1, index, element)) {
+            throw new IllegalArgumentException("Posizione " + index + " non coerente con l'ordinamento dell'inbox");
+        }
+        items.add(index, element);
+        byId.put(element.getId(), element);
+        searchIndex.add(element);
+    }
+
+    @Override
+    protected Email doSet(int index, Email element) {
+        Email current = items.get(index);
+        boolean duplicate = !element.getId().equals(current.getId()) && byId.containsKey(element.getId());
+        if (duplicate || !fitsBetween(index - 1, index + 1, element)) {
+            throw new IllegalArgumentException("Posizione " + index + " non coerente con l'ordinamento dell'inbox");
+        }
+        Email previous = items.set(index, element);
+        byId.remove(previous.getId());
+        searchIndex.remove(previous.getId());
+        byId.put(element.getId(), element);
+        searchIndex.add(element);
+        return previous;
+    }
+
+    // true se element sta tra items[before] e items[after] nell'ordinamento (indici fuori dalla lista ignorati)
+    private boolean fitsBetween(int before, int after, Email element) {
+        return (before < 0 || NEWEST_FIRST.compare(items.get(before), element) < 0)
+                && (after >= items.size() || NEWEST_FIRST.compare(element, items.get(after)) < 0);
+    }
+
+    @Override
+    protected Email doRemove(int index) {
+        Email removed = items.remove(index);
+        byId.remove(removed.getId());
+        searchIndex.remove(removed.getId());
+        return removed;
+    }
+}
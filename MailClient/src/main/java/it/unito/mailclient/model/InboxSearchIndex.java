@@ -0,0 +1,110 @@
+package it.unito.mailclient.model;
+
+import it.unito.mail.common.Email;
+import it.unito.mail.common.SearchTokenizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Indice invertito su mittente, oggetto e testo (se già scaricato) dei messaggi dell'inbox.
+ * Le liste dei messaggi sono in una mappa hash, più veloce da aggiornare; le parole distinte sono anche
+ * in un insieme ordinato, così una ricerca per prefisso è un suo intervallo. Con più parole
+ * si parte da quella con meno messaggi e si filtrano i candidati sulle loro parole.
+ * Tiene aggiornato l'insieme dei risultati della ricerca corrente mentre i messaggi vengono aggiunti o rimossi.
+ * Va usato solo dal thread JavaFX, come InboxList che lo aggiorna.
+ */
+class InboxSearchIndex {
+
+    private final Map<String, Set<String>> postings = new HashMap<>();
+    private final NavigableSet<String> vocabulary = new TreeSet<>();
+    private final Map<String, String[]> tokensById = new HashMap<>();
+    private List<String> queryTerms = List.of();
+    private final Set<String> hits = new HashSet<>();
+
+    void add(Email email) {
+        String id = email.getId();
+        if (id == null) return;
+        if (tokensById.containsKey(id)) remove(id);
+
+        Set<String> tokens = new HashSet<>();
+        SearchTokenizer.tokenize(email.getSender(), tokens);
+        SearchTokenizer.tokenize(email.getSubject(), tokens);
+        SearchTokenizer.tokenize(email.getText(), tokens);
+        String[] array = tokens.toArray(new String[0]);
+        tokensById.put(id, array);
+        for (String token : array) {
+            Set<String> ids = postings.get(token);
+            if (ids == null) {
+                ids = new HashSet<>();
+                postings.put(token, ids);
+                vocabulary.add(token);
+            }
+            ids.add(id);
+        }
+        if (!queryTerms.isEmpty() && SearchTokenizer.matchesAll(array, queryTerms)) hits.add(id);
+    }
+
+    void remove(String id) {
+        String[] tokens = tokensById.remove(id);
+        if (tokens == null) return;
+        for (String token : tokens) {
+            Set<String> ids = postings.get(token);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                postings.remove(token);
+                vocabulary.remove(token);
+            }
+        }
+        hits.remove(id);
+    }
+
+    void clear() {
+        postings.clear();
+        vocabulary.clear();
+        tokensById.clear();
+        hits.clear();
+    }
+
+    /**
+     * Imposta la ricerca corrente: ogni parola della query deve essere il prefisso di una parola del messaggio.
+     * Restituisce l'insieme (aggiornato in seguito dall'indice) degli id che corrispondono,
+     * oppure null se la query non contiene parole.
+     */
+    Set<String> search(String query) {
+        List<String> terms = new ArrayList<>(SearchTokenizer.tokenize(query, new HashSet<>()));
+        queryTerms = terms;
+        hits.clear();
+        if (terms.isEmpty()) return null;
+
+        // la parola più selettiva fornisce i candidati, le altre vengono verificate sulle parole del candidato
+        String seed = null;
+        long seedSize = Long.MAX_VALUE;
+        for (String term : terms) {
+            long size = 0;
+            for (String token : prefixRange(term)) {
+                size += postings.get(token).size();
+                if (size >= seedSize) break;
+            }
+            if (size < seedSize) {
+                seed = term;
+                seedSize = size;
+            }
+        }
+        for (String token : prefixRange(seed)) {
+            for (String id : postings.get(token)) {
+                if (terms.size() == 1 || SearchTokenizer.matchesAll(tokensById.get(id), terms)) hits.add(id);
+            }
+        }
+        return hits;
+    }
+
+    private NavigableSet<String> prefixRange(String prefix) {
+        return vocabulary.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+}
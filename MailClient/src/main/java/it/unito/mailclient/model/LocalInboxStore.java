@@ -0,0 +1,126 @@
+package it.unito.mailclient.model;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import it.unito.mail.common.Email;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Copia locale della inbox e del cursore di sincronizzazione (epoch e sequenza), un file per account.
+ * Al login permette di mostrare subito i messaggi e di chiedere al server solo le modifiche successive.
+ */
+class LocalInboxStore {
+
+    private static final int FORMAT_VERSION = 2;
+
+    private final Path directory;
+    private final Gson gson;
+
+    LocalInboxStore(Path directory, Gson gson) {
+        this.directory = directory;
+        this.gson = gson;
+    }
+
+    static LocalInboxStore defaultStore(Gson gson) {
+        String dir = System.getProperty("mail.client.cacheDir",
+                Paths.get(System.getProperty("user.home"), ".mailclient").toString());
+        return new LocalInboxStore(Paths.get(dir), gson);
+    }
+
+    /**
+     * Restituisce la copia salvata per l'account, oppure null se manca o non è leggibile.
+     */
+    Snapshot load(String user) {
+        Path file = fileFor(user);
+        if (!Files.exists(file)) return null;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Snapshot snapshot = gson.fromJson(reader, Snapshot.class);
+            if (snapshot == null || snapshot.version != FORMAT_VERSION || snapshot.emails == null
+                    || !user.equalsIgnoreCase(snapshot.user)) {
+                return null;
+            }
+            return snapshot;
+        } catch (IOException | JsonParseException e) {
+            System.err.println("Cache locale non leggibile per " + user + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void save(String user, Long epoch, Long sequence, List<Email> emails) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.version = FORMAT_VERSION;
+        snapshot.user = user;
+        snapshot.epoch = epoch;
+        snapshot.sequence = sequence;
+        snapshot.emails = emails;
+
+        Path file = fileFor(user);
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, "inbox", ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                gson.toJson(snapshot, writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException | RuntimeException e) {
+            // anche JsonIOException: il salvataggio gira sul thread della cache e non deve interromperlo
+            System.err.println("Impossibile salvare la cache locale per " + user + ": " + e.getMessage());
+        } finally {
+            if (temp != null) deleteTemp(temp);
+        }
+    }
+
+    private static void deleteTemp(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.err.println("Impossibile eliminare il file temporaneo " + temp + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Elimina la copia salvata, per esempio quando il server rifiuta l'account.
+     */
+    void discard(String user) {
+        try {
+            Files.deleteIfExists(fileFor(user));
+        } catch (IOException e) {
+            System.err.println("Impossibile eliminare la cache locale per " + user + ": " + e.getMessage());
+        }
+    }
+
+    private Path fileFor(String user) {
+        return directory.resolve(user.trim().toLowerCase().replaceAll("[^a-z0-9@._-]", "_") + ".json");
+    }
+
+    static class Snapshot {
+        int version;
+        String user;
+        Long epoch;
+        Long sequence;
+        List<Email> emails;
+
+        Long getEpoch() {
+            return epoch;
+        }
+
+        Long getSequence() {
+            return sequence;
+        }
+
+        List<Email> getEmails() {
+            return emails;
+        }
+    }
+}
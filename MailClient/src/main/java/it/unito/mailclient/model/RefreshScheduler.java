@@ -0,0 +1,79 @@
+package it.unito.mailclient.model;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decide quando eseguire il prossimo aggiornamento dell'inbox in base all'esito del precedente.
+ * Con il server irraggiungibile l'attesa raddoppia a ogni tentativo fallito, con una componente casuale
+ * perché i client non si riconnettano tutti insieme al riavvio del server. Subito dopo l'arrivo di nuova posta
+ * gli aggiornamenti sono più frequenti, con la finestra inattiva più radi.
+ * Con il long-poll un aggiornamento riuscito è seguito subito dal successivo, salvo con la finestra inattiva;
+ * le cadenze fast/normal valgono solo se il server non supporta WAIT_UPDATES.
+ */
+class RefreshScheduler {
+
+    enum Outcome { NEW_MAIL, NO_NEW_MAIL, BUSY, OFFLINE }
+
+    private static final long FAST_REFRESH_MILLIS = Long.getLong("mail.client.fastRefreshMillis", 1_000L);
+    private static final long REFRESH_MILLIS = Long.getLong("mail.client.refreshMillis", 5_000L);
+    private static final long IDLE_REFRESH_MILLIS = Long.getLong("mail.client.idleRefreshMillis", 30_000L);
+    private static final long FAST_WINDOW_MILLIS = Long.getLong("mail.client.fastWindowMillis", 30_000L);
+    private static final long RETRY_BASE_MILLIS = 1_000;
+    private static final long RETRY_MAX_MILLIS = Long.getLong("mail.client.maxRetryMillis", 60_000L);
+
+    private int failures = 0;
+    private long lastNewMail = 0;
+    private volatile boolean active = true;
+    private volatile boolean idleWait = false;
+
+    synchronized void reset() {
+        failures = 0;
+        lastNewMail = 0;
+        idleWait = false;
+    }
+
+    /**
+     * Attesa in millisecondi prima del prossimo aggiornamento.
+     */
+    synchronized long nextDelay(Outcome outcome, boolean longPoll, Long retryAfterMillis) {
+        long now = System.currentTimeMillis();
+        idleWait = false;
+        switch (outcome) {
+            case OFFLINE:
+                return retryDelay(0);
+            case BUSY:
+                return retryDelay(retryAfterMillis != null ? retryAfterMillis : 0);
+            case NEW_MAIL:
+                lastNewMail = now;
+                break;
+            default:
+                break;
+        }
+        failures = 0;
+        if (now - lastNewMail < FAST_WINDOW_MILLIS) {
+            return longPoll ? 0 : FAST_REFRESH_MILLIS;
+        }
+        if (!active) {
+            idleWait = true;
+            return IDLE_REFRESH_MILLIS;
+        }
+        return longPoll ? 0 : REFRESH_MILLIS;
+    }
+
+    private long retryDelay(long atLeast) {
+        long base = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << Math.min(failures, 16));
+        failures++;
+        return Math.max(atLeast, base / 2 + ThreadLocalRandom.current().nextLong(base / 2 + 1));
+    }
+
+    void setActive(boolean active) {
+        this.active = active;
+    }
+
+    /**
+     * True se il prossimo aggiornamento è stato rimandato solo perché la finestra era inattiva.
+     */
+    boolean isIdleWait() {
+        return idleWait;
+    }
+}
@@ -0,0 +1,153 @@
+package it.unito.mailclient.model;
+
+import it.unito.mail.common.Email;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableListBase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Vista dei risultati della ricerca sopra InboxList, nello stesso ordine (dal più recente).
+ * Una nuova ricerca costruisce la vista dagli id trovati dall'indice, cercandoli per id e ordinando
+ * solo i risultati; la vista o l'inbox vengono scorse solo se i risultati ne sono una parte consistente.
+ * Le modifiche successive dell'inbox toccano solo i messaggi coinvolti.
+ * Senza ricerca la vista coincide con l'inbox. Va usata solo dal thread JavaFX.
+ */
+class SearchResultList extends ObservableListBase<Email> {
+
+    // oltre questo rapporto tra lista e risultati, ordinare i risultati costa meno che scorrere la lista
+    private static final int WALK_RATIO = 8;
+
+    private final InboxList inbox;
+    // null quando la vista mostra tutta l'inbox
+    private Predicate<String> matches;
+    private List<Email> matched = new ArrayList<>();
+
+    SearchResultList(InboxList inbox) {
+        this.inbox = inbox;
+        inbox.addListener(this::inboxChanged);
+    }
+
+    @Override
+    public Email get(int index) {
+        return matches == null ? inbox.get(index) : matched.get(index);
+    }
+
+    @Override
+    public int size() {
+        return matches == null ? inbox.size() : matched.size();
+    }
+
+    /**
+     * Mostra i messaggi dell'inbox con gli id indicati; matches decide se mostrare quelli aggiunti in seguito.
+     */
+    void show(Set<String> ids, Predicate<String> matches) {
+        List<Email> found = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Email email = inbox.getById(id);
+            if (email != null) found.add(email);
+        }
+        // risultati numerosi rispetto alla vista (una query che ne restringe un'altra, come mentre si scrive)
+        // o rispetto all'inbox (una query che si allarga): si prendono nell'ordine della lista invece di ordinarli
+        List<Email> ordered = null;
+        if (this.matches != null && inOrder(matched, found.size())) {
+            ordered = walk(matched, ids, found.size());
+        }
+        if (ordered == null && inOrder(inbox, found.size())) {
+            ordered = walk(inbox, ids, found.size());
+        }
+        if (ordered != null) {
+            found = ordered;
+        } else {
+            found.sort(InboxList.NEWEST_FIRST);
+        }
+        replaceWith(found, matches);
+    }
+
+    private static boolean inOrder(List<Email> source, int count) {
+        return count > 0 && source.size() <= (long) count * WALK_RATIO;
+    }
+
+    // null se la lista non contiene tutti i risultati
+    private static List<Email> walk(List<Email> source, Set<String> ids, int count) {
+        List<Email> ordered = new ArrayList<>(count);
+        for (Email email : source) {
+            if (ids.contains(email.getId())) ordered.add(email);
+        }
+        return ordered.size() == count ? ordered : null;
+    }
+
+    void showAll() {
+        if (matches != null) replaceWith(new ArrayList<>(), null);
+    }
+
+    private void replaceWith(List<Email> found, Predicate<String> newMatches) {
+        // il contenuto precedente serve alla notifica: se era tutta l'inbox va copiato prima di cambiare vista
+        List<Email> removed = matches == null ? new ArrayList<>(inbox) : matched;
+        beginChange();
+        try {
+            matches = newMatches;
+            matched = found;
+            if (!removed.isEmpty() || size() > 0) nextReplace(0, size(), removed);
+        } finally {
+            endChange();
+        }
+    }
+
+    private void inboxChanged(ListChangeListener.Change<? extends Email> c) {
+        beginChange();
+        try {
+            while (c.next()) {
+                if (matches == null) {
+                    mirror(c);
+                } else {
+                    if (c.wasRemoved()) {
+                        for (Email email : c.getRemoved()) removeMatched(email);
+                    }
+                    if (c.wasAdded()) {
+                        for (Email email : c.getAddedSubList()) {
+                            if (matches.test(email.getId())) addMatched(email);
+                        }
+                    }
+                }
+            }
+        } finally {
+            endChange();
+        }
+    }
+
+    private void mirror(ListChangeListener.Change<? extends Email> c) {
+        if (c.wasPermutated()) {
+            int[] permutation = new int[c.getTo() - c.getFrom()];
+            for (int i = c.getFrom(); i < c.getTo(); i++) permutation[i - c.getFrom()] = c.getPermutation(i);
+            nextPermutation(c.getFrom(), c.getTo(), permutation);
+        } else if (c.wasUpdated()) {
+            for (int i = c.getFrom(); i < c.getTo(); i++) nextUpdate(i);
+        } else {
+            if (c.wasRemoved()) nextRemove(c.getFrom(), new ArrayList<Email>(c.getRemoved()));
+            if (c.wasAdded()) nextAdd(c.getFrom(), c.getTo());
+        }
+    }
+
+    private void addMatched(Email email) {
+        int position = Collections.binarySearch(matched, email, InboxList.NEWEST_FIRST);
+        if (position >= 0) {
+            nextSet(position, matched.set(position, email));
+        } else {
+            position = -position - 1;
+            matched.add(position, email);
+            nextAdd(position, position + 1);
+        }
+    }
+
+    private void removeMatched(Email email) {
+        int position = Collections.binarySearch(matched, email, InboxList.NEWEST_FIRST);
+        if (position >= 0) {
+            nextRemove(position, matched.remove(position));
+        }
+    }
+}
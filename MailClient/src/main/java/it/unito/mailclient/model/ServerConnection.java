@@ -0,0 +1,235 @@
+package it.unito.mailclient.model;
+
+import com.google.gson.Gson;
+import it.unito.mail.common.BinaryCodec;
+import it.unito.mail.common.Packet;
+import it.unito.mail.common.PacketCompression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connessione persistente verso il server: le richieste vengono inviate in pipeline con keepAlive
+ * e le risposte, lette da un thread dedicato, sono associate alla richiesta tramite requestId.
+ * La connessione viene chiusa dal client prima del timeout di inattività del server.
+ * In modalità binaria, se il server non conferma il preambolo si torna definitivamente al JSON: la scelta
+ * è condivisa con le altre connessioni del client, così il timeout della negoziazione si paga una volta sola.
+ */
+class ServerConnection {
+
+    private static class UnsupportedCodecException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedCodecException() {
+            super("Il server non supporta la codifica binaria");
+        }
+    }
+
+    private static final long RESPONSE_TIMEOUT_MILLIS = 15_000;
+
+    private final String host;
+    private final int port;
+    private final long idleMillis;
+    private final Gson gson;
+    private final AtomicBoolean binary;
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    private Socket socket;
+    private volatile Map<String, CompletableFuture<Packet>> inFlight;
+    private OutputStream out;
+    private boolean binaryConnection;
+    private long lastUsed;
+
+    /**
+     * @param binary true finché si deve provare la codifica binaria; diventa false quando il server non la supporta
+     */
+    ServerConnection(String host, int port, long idleMillis, AtomicBoolean binary, Gson gson) {
+        this.host = host;
+        this.port = port;
+        this.idleMillis = idleMillis;
+        this.binary = binary;
+        this.gson = gson;
+    }
+
+    /**
+     * Invia la richiesta e attende la risposta. Le richieste idempotenti vengono ripetute una volta
+     * su una nuova connessione se quella riutilizzata è stata chiusa dal server.
+     */
+    Packet send(Packet request, boolean idempotent) throws IOException {
+        try {
+            return attempt(request);
+        } catch (IOException e) {
+            if (!idempotent && !(e instanceof UnsupportedCodecException)) throw e;
+            return attempt(request);
+        }
+    }
+
+    private Packet attempt(Packet request) throws IOException {
+        String requestId = Long.toString(nextRequestId.incrementAndGet());
+        request.setRequestId(requestId);
+        request.setKeepAlive(true);
+
+        CompletableFuture<Packet> response = new CompletableFuture<>();
+        Map<String, CompletableFuture<Packet>> requests = null;
+        try {
+            synchronized (this) {
+                ensureOpen();
+                requests = inFlight;
+                requests.put(requestId, response);
+                try {
+                    if (binaryConnection) {
+                        BinaryCodec.writeFrame(out, request);
+                    } else {
+                        out.write((gson.toJson(request) + "\n").getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    closeQuietly();
+                    throw new IOException("Connessione al server interrotta", e);
+                }
+                lastUsed = System.currentTimeMillis();
+            }
+            long timeout = RESPONSE_TIMEOUT_MILLIS + (request.getWaitMillis() != null ? request.getWaitMillis() : 0);
+            Packet result = response.get(timeout, TimeUnit.MILLISECONDS);
+            synchronized (this) {
+                lastUsed = System.currentTimeMillis();
+            }
+            return result;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            synchronized (this) {
+                closeQuietly();
+            }
+            throw new IOException("Timeout in attesa della risposta del server");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Richiesta interrotta", e);
+        } finally {
+            if (requests != null) requests.remove(requestId);
+        }
+    }
+
+    /**
+     * Richieste inviate su questa connessione e ancora in attesa di risposta.
+     */
+    int pendingRequests() {
+        Map<String, CompletableFuture<Packet>> requests = inFlight;
+        return requests != null ? requests.size() : 0;
+    }
+
+    synchronized void close() {
+        closeQuietly();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (socket != null && !socket.isClosed() && System.currentTimeMillis() - lastUsed < idleMillis) {
+            return;
+        }
+        closeQuietly();
+
+        Socket opened = new Socket(host, port);
+        socket = opened;
+        out = new BufferedOutputStream(opened.getOutputStream());
+        inFlight = new ConcurrentHashMap<>();
+        boolean binaryConnection = binary.get();
+        this.binaryConnection = binaryConnection;
+        if (binaryConnection) {
+            out.write(BinaryCodec.PREAMBLE);
+        }
+        InputStream in = new BufferedInputStream(opened.getInputStream());
+
+        Map<String, CompletableFuture<Packet>> requests = inFlight;
+        Thread reader = new Thread(() -> readResponses(opened, in, binaryConnection, requests), "server-connection-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readResponses(Socket owner, InputStream in, boolean binaryConnection, Map<String, CompletableFuture<Packet>> requests) {
+        IOException failure = new IOException("Connessione chiusa dal server");
+        try {
+            if (binaryConnection) {
+                owner.setSoTimeout(ClientModel.HANDSHAKE_TIMEOUT_MILLIS);
+                byte[] ack = in.readNBytes(BinaryCodec.PREAMBLE.length);
+                owner.setSoTimeout(0);
+                if (!BinaryCodec.isPreamble(ack)) throw new UnsupportedCodecException();
+
+                DataInputStream data = new DataInputStream(in);
+                Packet response;
+                while ((response = BinaryCodec.readFrame(data, ClientModel.MAX_RESPONSE_BYTES)) != null) {
+                    deliver(response, requests);
+                }
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    deliver(gson.fromJson(PacketCompression.decodeLine(line, ClientModel.MAX_RESPONSE_BYTES), Packet.class), requests);
+                }
+            }
+        } catch (SocketTimeoutException | UnsupportedCodecException e) {
+            if (binary.compareAndSet(true, false)) {
+                System.err.println("Il server non supporta la codifica binaria, uso JSON.");
+            }
+            failure = new UnsupportedCodecException();
+        } catch (IOException | RuntimeException e) {
+            // la connessione è stata chiusa: le richieste in attesa vengono fallite sotto
+        }
+
+        synchronized (this) {
+            if (socket == owner) closeQuietly();
+        }
+        for (CompletableFuture<Packet> pending : requests.values()) {
+            pending.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Una risposta senza requestId (per esempio BUSY da un server che non ha potuto leggere la richiesta)
+     * va alla richiesta più vecchia in attesa: il server risponde in ordine, quindi è quella a cui si riferisce.
+     */
+    private static void deliver(Packet response, Map<String, CompletableFuture<Packet>> requests) {
+        String requestId = response.getRequestId() != null ? response.getRequestId() : oldest(requests);
+        CompletableFuture<Packet> pending = requestId != null ? requests.get(requestId) : null;
+        if (pending != null) pending.complete(response);
+    }
+
+    private static String oldest(Map<String, CompletableFuture<Packet>> requests) {
+        String oldest = null;
+        long oldestId = Long.MAX_VALUE;
+        for (String requestId : requests.keySet()) {
+            long id = Long.parseLong(requestId);
+            if (id < oldestId) {
+                oldestId = id;
+                oldest = requestId;
+            }
+        }
+        return oldest;
+    }
+
+    private void closeQuietly() {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        socket = null;
+        out = null;
+    }
+}
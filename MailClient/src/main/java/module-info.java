@@ -7,6 +7,7 @@ module MailClient {
 
     opens it.unito.mailclient to javafx.fxml;
     opens it.unito.mailclient.controller to javafx.fxml;
+    opens it.unito.mailclient.model to com.google.gson;
 
     exports it.unito.mailclient;
     exports it.unito.mailclient.controller;
@@ -0,0 +1,131 @@
+package it.unito.mailclient.model;
+
+import it.unito.mail.common.Email;
+import javafx.collections.ListChangeListener;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InboxListTest {
+
+    private final Random random = new Random(7);
+
+    @Test
+    void mergeKeepsTheNewestFirstOrder() {
+        InboxList inbox = new InboxList();
+        List<Email> reference = new ArrayList<>(generate(500));
+        inbox.setAll(reference);
+
+        for (int round = 0; round < 50; round++) {
+            List<Email> batch = generate(1 + random.nextInt(30));
+            assertEquals(batch.size(), inbox.merge(batch));
+            reference.addAll(batch);
+        }
+
+        reference.sort(InboxList.NEWEST_FIRST);
+        assertEquals(reference, inbox);
+    }
+
+    @Test
+    void mergeSkipsMessagesAlreadyPresent() {
+        InboxList inbox = new InboxList();
+        List<Email> existing = generate(10);
+        inbox.setAll(existing);
+        Email fresh = generate(1).get(0);
+
+        assertEquals(1, inbox.merge(List.of(existing.get(3), fresh, fresh)));
+        assertEquals(0, inbox.merge(existing));
+        assertEquals(11, inbox.size());
+        assertTrue(inbox.containsId(fresh.getId()));
+    }
+
+    @Test
+    void mergeFiresASingleChangeWithTheInsertedRanges() {
+        InboxList inbox = new InboxList();
+        inbox.setAll(generate(100));
+        List<Email> batch = generate(20);
+        List<Email> added = new ArrayList<>();
+        int[] changes = {0};
+        inbox.addListener((ListChangeListener<Email>) change -> {
+            changes[0]++;
+            while (change.next()) {
+                assertTrue(change.wasAdded());
+                assertFalse(change.wasRemoved());
+                added.addAll(change.getAddedSubList());
+            }
+        });
+
+        inbox.merge(batch);
+
+        assertEquals(1, changes[0]);
+        batch.sort(InboxList.NEWEST_FIRST);
+        assertEquals(batch, added);
+    }
+
+    @Test
+    void addInsertsInTheSortedPosition() {
+        InboxList inbox = new InboxList();
+        inbox.setAll(List.of(email(300), email(100)));
+        Email middle = email(200);
+
+        assertTrue(inbox.add(middle));
+        assertFalse(inbox.add(middle));
+
+        assertEquals(1, inbox.indexOf(middle));
+        assertEquals(3, inbox.size());
+    }
+
+    @Test
+    void positionalChangesOutOfOrderAreRejected() {
+        InboxList inbox = new InboxList();
+        Email newest = email(300);
+        Email oldest = email(100);
+        inbox.setAll(List.of(newest, oldest));
+
+        assertThrows(IllegalArgumentException.class, () -> inbox.add(0, email(50)));
+        assertThrows(IllegalArgumentException.class, () -> inbox.add(1, newest));
+        assertThrows(IllegalArgumentException.class, () -> inbox.set(1, email(400)));
+
+        inbox.add(1, email(200));
+        inbox.set(2, email(50));
+        assertEquals(List.of(300L, 200L, 50L), inbox.stream().map(e -> e.getTimestamp().getTime()).toList());
+    }
+
+    @Test
+    void indexOfFindsOnlyTheContainedInstance() {
+        InboxList inbox = new InboxList();
+        List<Email> emails = generate(50);
+        inbox.setAll(emails);
+
+        for (Email email : emails) {
+            assertEquals(email, inbox.get(inbox.indexOf(email)));
+        }
+        assertEquals(-1, inbox.indexOf(email(1)));
+        inbox.removeIf(e -> e == emails.get(0));
+        assertEquals(-1, inbox.indexOf(emails.get(0)));
+        assertFalse(inbox.containsId(emails.get(0).getId()));
+    }
+
+    private List<Email> generate(int count) {
+        List<Email> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // timestamp ripetuti: l'ordinamento deve ricadere sull'id
+            emails.add(email(1_700_000_000_000L + random.nextInt(1000)));
+        }
+        return emails;
+    }
+
+    private static Email email(long timestamp) {
+        Email email = new Email("user1@mail.com", List.of("user2@mail.com"), "oggetto", null);
+        email.setTimestamp(new Date(timestamp));
+        return email;
+    }
+}
@@ -0,0 +1,38 @@
+package it.unito.mailclient.model;
+
+import com.google.gson.Gson;
+import it.unito.mail.common.Email;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Gira sul module path: la cache serializza con Gson lo Snapshot del modello,
+ * che quindi deve essere aperto a com.google.gson.
+ */
+class LocalInboxStoreModulePathTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void snapshotIsSavedAndLoadedFromTheNamedModule() {
+        assertTrue(LocalInboxStore.class.getModule().isNamed(), "il test deve girare sul module path");
+        LocalInboxStore store = new LocalInboxStore(directory, new Gson());
+        Email email = new Email("user2@mail.com", List.of("user1@mail.com"), "oggetto", "testo");
+
+        store.save("user1@mail.com", 3L, 17L, List.of(email));
+        LocalInboxStore.Snapshot snapshot = store.load("user1@mail.com");
+
+        assertNotNull(snapshot);
+        assertEquals(3L, snapshot.getEpoch());
+        assertEquals(17L, snapshot.getSequence());
+        assertEquals(email.getId(), snapshot.getEmails().get(0).getId());
+    }
+}
@@ -0,0 +1,87 @@
+package it.unito.mailclient.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import it.unito.mail.common.Email;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LocalInboxStoreTest {
+
+    private static final String USER = "user1@mail.com";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void savedSnapshotIsLoadedBack() {
+        LocalInboxStore store = new LocalInboxStore(directory, new Gson());
+        store.save(USER, 1L, 5L, List.of(email()));
+
+        LocalInboxStore.Snapshot snapshot = store.load(USER);
+
+        assertNotNull(snapshot);
+        assertEquals(5L, snapshot.getSequence());
+        assertEquals(1, snapshot.getEmails().size());
+        assertEquals(List.of(directory.resolve(USER + ".json")), files());
+    }
+
+    @Test
+    void serializationErrorIsReportedAndLeavesNoTempFile() {
+        Gson failing = new GsonBuilder().registerTypeAdapter(Email.class, new TypeAdapter<Email>() {
+            @Override
+            public void write(JsonWriter out, Email value) {
+                throw new JsonIOException("campo non accessibile");
+            }
+
+            @Override
+            public Email read(JsonReader in) {
+                throw new UnsupportedOperationException();
+            }
+        }).create();
+        LocalInboxStore store = new LocalInboxStore(directory, failing);
+
+        store.save(USER, 1L, 5L, List.of(email()));
+
+        assertNull(store.load(USER));
+        assertEquals(List.of(), files());
+    }
+
+    @Test
+    void failedMoveLeavesNoTempFile() throws IOException {
+        // una directory non vuota al posto del file fa fallire lo spostamento finale
+        Path target = Files.createDirectories(directory.resolve(USER + ".json"));
+        Files.createFile(target.resolve("occupato"));
+        LocalInboxStore store = new LocalInboxStore(directory, new Gson());
+
+        store.save(USER, 1L, 5L, List.of(email()));
+
+        assertEquals(List.of(target), files());
+    }
+
+    private List<Path> files() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toList();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Email email() {
+        return new Email("user2@mail.com", List.of(USER), "oggetto", "testo");
+    }
+}
@@ -0,0 +1,107 @@
+package it.unito.mailclient.model;
+
+import it.unito.mail.common.Email;
+import javafx.collections.ListChangeListener;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchResultListTest {
+
+    private final InboxList inbox = new InboxList();
+    private final SearchResultList results = new SearchResultList(inbox);
+
+    @Test
+    void showListsTheHitsInInboxOrder() {
+        inbox.setAll(List.of(email(100, "riunione"), email(200, "fattura"), email(300, "riunione progetto"), email(400, "esame")));
+        int[] changes = {0};
+        results.addListener((ListChangeListener<Email>) c -> changes[0]++);
+
+        Set<String> hits = inbox.search("riun");
+        results.show(hits, hits::contains);
+
+        assertEquals(List.of("riunione progetto", "riunione"), subjects(results));
+        assertEquals(1, changes[0]);
+
+        results.showAll();
+        assertEquals(inbox, results);
+        assertEquals(2, changes[0]);
+    }
+
+    @Test
+    void narrowingAndWideningKeepTheInboxOrder() {
+        inbox.setAll(List.of(email(100, "riunione"), email(200, "riunione progetto"), email(300, "rinvio"),
+                email(400, "fattura")));
+
+        Set<String> hits = inbox.search("ri");
+        results.show(hits, hits::contains);
+        assertEquals(List.of("rinvio", "riunione progetto", "riunione"), subjects(results));
+
+        hits = inbox.search("riunione progetto");
+        results.show(hits, hits::contains);
+        assertEquals(List.of("riunione progetto"), subjects(results));
+
+        hits = inbox.search("r");
+        results.show(hits, hits::contains);
+        assertEquals(List.of("rinvio", "riunione progetto", "riunione"), subjects(results));
+    }
+
+    @Test
+    void laterChangesTouchOnlyMatchingMessages() {
+        inbox.setAll(List.of(email(100, "riunione"), email(300, "fattura")));
+        Set<String> hits = inbox.search("riun");
+        results.show(hits, hits::contains);
+        List<ListChangeListener.Change<? extends Email>> seen = new ArrayList<>();
+        List<Email> added = new ArrayList<>();
+        results.addListener((ListChangeListener<Email>) c -> {
+            while (c.next()) added.addAll(c.getAddedSubList());
+            seen.add(c);
+        });
+
+        Email newer = email(500, "riunione nuova");
+        Email older = email(50, "riunione vecchia");
+        inbox.merge(List.of(newer, email(400, "esame"), older));
+
+        assertEquals(List.of("riunione nuova", "riunione", "riunione vecchia"), subjects(results));
+        assertEquals(List.of(newer, older), added);
+        assertEquals(1, seen.size());
+
+        inbox.removeIf(e -> e == newer || e.getSubject().equals("fattura"));
+        assertEquals(List.of("riunione", "riunione vecchia"), subjects(results));
+    }
+
+    @Test
+    void withoutSearchTheViewMirrorsTheInbox() {
+        inbox.setAll(List.of(email(100, "uno"), email(300, "tre")));
+        List<Email> mirrored = new ArrayList<>(results);
+        results.addListener((ListChangeListener<Email>) c -> {
+            while (c.next()) {
+                if (c.wasRemoved()) mirrored.subList(c.getFrom(), c.getFrom() + c.getRemovedSize()).clear();
+                if (c.wasAdded()) mirrored.addAll(c.getFrom(), c.getAddedSubList());
+            }
+        });
+
+        inbox.merge(List.of(email(200, "due"), email(400, "quattro")));
+        inbox.removeIf(e -> e.getSubject().equals("tre"));
+
+        assertEquals(inbox, results);
+        assertEquals(inbox, mirrored);
+        assertEquals(0, results.indexOf(inbox.get(0)));
+    }
+
+    private static List<String> subjects(List<Email> emails) {
+        return emails.stream().map(Email::getSubject).toList();
+    }
+
+    private static Email email(long timestamp, String subject) {
+        Email email = new Email("user1@mail.com", List.of("user2@mail.com"), subject, null);
+        email.setTimestamp(new Date(timestamp));
+        return email;
+    }
+}
@@ -2,6 +2,9 @@ package it.unito.mail.server;
 
 import it.unito.mail.server.controller.ServerController;
 import it.unito.mail.server.net.ClientHandler;
+import it.unito.mail.server.net.NioServer;
+import it.unito.mail.server.net.RequestProcessor;
+import it.unito.mail.server.net.VirtualThreadServer;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
@@ -10,12 +13,23 @@ import javafx.stage.Stage;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ServerApp extends Application {
 
     private static final int PORT = 8189;
+    private static final String SERVER_MODE = System.getProperty("mail.server.mode", "nio");
+    private static final int IO_THREADS = Integer.getInteger("mail.server.ioThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int WORKER_THREADS = Integer.getInteger("mail.server.workers", 16);
+    private static final int WORKER_QUEUE = Integer.getInteger("mail.server.workerQueue", 1024);
+    private static final int VIRTUAL_MAX_CONCURRENT = Integer.getInteger("mail.server.maxConcurrent", 256);
+    private static final int VIRTUAL_MAX_QUEUED = Integer.getInteger("mail.server.maxQueued", 4096);
+    private static final long STATS_MILLIS = Long.getLong("mail.server.statsMillis", 10_000L);
+    private static final int POOL_MAX_THREADS = Integer.getInteger("mail.server.poolThreads", 512);
+    private static final int MAX_REQUEST_BYTES = Integer.getInteger("mail.server.maxRequestBytes", 16 * 1024 * 1024);
 
     @Override
     public void start(Stage stage) throws IOException {
@@ -39,9 +53,30 @@ public class ServerApp extends Application {
     }
 
     private void startServer(ServerController controller) {
+        if ("pool".equalsIgnoreCase(SERVER_MODE)) {
+            startPoolServer(controller);
+            return;
+        }
+        if ("virtual".equalsIgnoreCase(SERVER_MODE)) {
+            new VirtualThreadServer(PORT, controller, VIRTUAL_MAX_CONCURRENT, VIRTUAL_MAX_QUEUED, STATS_MILLIS).start();
+            return;
+        }
+
+        try {
+            new NioServer(PORT, controller, IO_THREADS, WORKER_THREADS, WORKER_QUEUE, MAX_REQUEST_BYTES).start();
+        } catch (IOException e) {
+            controller.appendLog("Errore Server: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void startPoolServer(ServerController controller) {
         Thread serverThread = new Thread(() -> {
 
-            ExecutorService threadPool = Executors.newCachedThreadPool();
+            // pool limitato: oltre POOL_MAX_THREADS connessioni contemporanee le nuove ricevono BUSY da un thread virtuale
+            ThreadPoolExecutor threadPool = new ThreadPoolExecutor(0, POOL_MAX_THREADS, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>());
+            RequestProcessor processor = new RequestProcessor(controller);
 
             try (ServerSocket serverSocket = new ServerSocket(PORT)) {
 
@@ -50,9 +85,14 @@ public class ServerApp extends Application {
                 while (true) {
                     Socket clientSocket = serverSocket.accept();
 
-                    ClientHandler handler = new ClientHandler(clientSocket, controller);
+                    ClientHandler handler = new ClientHandler(clientSocket, controller, processor);
 
-                    threadPool.execute(handler);
+                    try {
+                        threadPool.execute(handler);
+                    } catch (RejectedExecutionException e) {
+                        controller.appendLog("Troppe connessioni, rifiutata " + clientSocket.getInetAddress());
+                        Thread.ofVirtual().name("mail-reject").start(ClientHandler.rejecting(clientSocket, controller));
+                    }
                 }
 
             } catch (IOException e) {
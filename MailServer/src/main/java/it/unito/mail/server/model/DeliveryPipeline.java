@@ -0,0 +1,111 @@
+package it.unito.mail.server.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Group commit delle consegne: i depositi diretti alla stessa mailbox vengono accodati
+ * e scritti con un'unica append/flush, poi confermati insieme.
+ * Un lotto si chiude quando raggiunge maxBatch messaggi o dopo lingerMillis dal primo deposito.
+ */
+class DeliveryPipeline {
+
+    interface Committer {
+        void commit(String mailbox, List<Deposit> deposits) throws IOException;
+    }
+
+    /**
+     * Un messaggio da depositare, con le parole per l'indice di ricerca calcolate quando il testo era in memoria.
+     */
+    record Deposit(StoredEmail email, String[] searchTokens) {}
+
+    private static class Batch {
+        private final String mailbox;
+        private final List<Deposit> deposits = new ArrayList<>();
+        private final List<CompletableFuture<Void>> acks = new ArrayList<>();
+        private boolean closed = false;
+
+        Batch(String mailbox) {
+            this.mailbox = mailbox;
+        }
+    }
+
+    private final Committer committer;
+    private final int maxBatch;
+    private final long lingerMillis;
+    private final Map<String, Batch> openBatches = new HashMap<>();
+    private final ScheduledExecutorService executor;
+
+    DeliveryPipeline(Committer committer, int maxBatch, long lingerMillis, int threads) {
+        this.committer = committer;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lingerMillis = Math.max(0, lingerMillis);
+
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "delivery-commit-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    CompletableFuture<Void> submit(String mailbox, Deposit deposit) {
+        String key = UserDirectory.normalize(mailbox);
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        Batch full = null;
+
+        synchronized (openBatches) {
+            Batch batch = openBatches.get(key);
+            if (batch == null) {
+                batch = new Batch(key);
+                openBatches.put(key, batch);
+                Batch lingering = batch;
+                executor.schedule(() -> close(lingering), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.deposits.add(deposit);
+            batch.acks.add(ack);
+
+            if (batch.deposits.size() >= maxBatch) {
+                batch.closed = true;
+                openBatches.remove(key);
+                full = batch;
+            }
+        }
+
+        if (full != null) {
+            Batch ready = full;
+            executor.execute(() -> commit(ready));
+        }
+        return ack;
+    }
+
+    private void close(Batch batch) {
+        synchronized (openBatches) {
+            if (batch.closed) return;
+            batch.closed = true;
+            openBatches.remove(batch.mailbox);
+        }
+        commit(batch);
+    }
+
+    private void commit(Batch batch) {
+        try {
+            committer.commit(batch.mailbox, batch.deposits);
+            for (CompletableFuture<Void> ack : batch.acks) {
+                ack.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (CompletableFuture<Void> ack : batch.acks) {
+                ack.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,496 @@
+package it.unito.mail.server.model;
+
+import it.unito.mail.common.Email;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+class Mailbox {
+
+    private static final int EMAIL_OVERHEAD_BYTES = 160;
+    private static final int CHANGE_OVERHEAD_BYTES = 48;
+    private static final int JOURNAL_LIMIT = Integer.getInteger("mail.journal.maxEntries", 10_000);
+    private static final Comparator<PageKey> NEWEST_FIRST = Comparator
+            .comparingLong(PageKey::time).reversed()
+            .thenComparing(PageKey::id, Comparator.reverseOrder());
+
+    // posizione di un messaggio nell'ordine delle pagine, la stessa codificata nel cursore "millis:id"
+    private record PageKey(long time, String id) {}
+
+    private final String owner;
+    private final long epoch;
+    private final LinkedHashMap<String, StoredEmail> emails = new LinkedHashMap<>();
+    // gli stessi messaggi dal più recente: una pagina è un tailMap dal cursore, senza ordinare la mailbox
+    private final TreeMap<PageKey, StoredEmail> newestFirst = new TreeMap<>(NEWEST_FIRST);
+    private final ArrayList<MailboxChange> journal = new ArrayList<>();
+    private final List<MailboxChange> pendingAppends = new ArrayList<>();
+    // corpi dei messaggi cancellati, da rilasciare solo quando il tombstone è su disco
+    private final List<String> pendingReleases = new ArrayList<>();
+    private long sequence = 0;
+    private long journalBase = 0;
+    private long logRecords = 0;
+    private long estimatedBytes;
+
+    private Mailbox(String owner, long epoch) {
+        this.owner = owner;
+        this.epoch = epoch;
+    }
+
+    /**
+     * @param epoch incarnazione della mailbox, riportata ai client insieme alla sequenza: va cambiata
+     *              quando la sequenza può essere tornata indietro (modifiche in write-behind perse in un crash)
+     */
+    static Mailbox load(String owner, MailboxLog log, MessageStore store, long epoch) throws IOException {
+        Mailbox mailbox = new Mailbox(owner, epoch);
+        // corpi inline spostati nel MessageStore: se la conversione non arriva in fondo i riferimenti vanno restituiti
+        List<String> converted = new ArrayList<>();
+        try {
+            boolean resized = replay(mailbox, log, store, converted);
+            if (log.needsUpgrade() || !converted.isEmpty() || resized) {
+                mailbox.compactTo(log);
+                mailbox.resetJournal();
+            }
+        } catch (IOException | RuntimeException e) {
+            store.releaseAll(converted);
+            throw e;
+        }
+        return mailbox;
+    }
+
+    /**
+     * @return true se qualche deposito era privo della dimensione del testo: il log va riscritto per registrarla
+     */
+    private static boolean replay(Mailbox mailbox, MailboxLog log, MessageStore store, List<String> converted) throws IOException {
+        boolean[] resized = {false};
+        log.replay(new MailboxLog.Visitor() {
+            @Override
+            public void onCheckpoint(long sequence) {
+                mailbox.sequence = sequence;
+                mailbox.resetJournal();
+            }
+
+            @Override
+            public void onDelete(long sequence, String emailId) {
+                mailbox.logRecords++;
+                StoredEmail removed = mailbox.removeEmail(emailId);
+                if (removed != null) mailbox.estimatedBytes -= estimateSize(removed);
+                if (sequence > mailbox.journalBase) {
+                    mailbox.record(new MailboxChange(sequence, MailboxChange.Type.DELETE, emailId));
+                }
+                mailbox.sequence = Math.max(mailbox.sequence, sequence);
+            }
+
+            @Override
+            public void onRead(long sequence, String emailId) {
+                mailbox.logRecords++;
+                StoredEmail email = mailbox.emails.get(emailId);
+                if (email != null) email.setRead(true);
+                if (sequence > mailbox.journalBase) {
+                    mailbox.record(new MailboxChange(sequence, MailboxChange.Type.READ, emailId));
+                }
+                mailbox.sequence = Math.max(mailbox.sequence, sequence);
+            }
+
+            @Override
+            public void onDeposit(long sequence, StoredEmail email) throws IOException {
+                mailbox.logRecords++;
+                if (email.getSize() == null) resized[0] = true;
+                if (email.hasInlineBody()) {
+                    MessageBody body = email.takeInlineBody();
+                    email.setSize(StoredEmail.textSize(body.getText()));
+                    email.setBodyRef(store.store(body, 1));
+                    converted.add(email.getBodyRef());
+                } else if (email.getSize() == null) {
+                    // record scritti prima che la dimensione venisse registrata: si legge il corpo una volta sola
+                    email.setSize(StoredEmail.textSize(store.load(email.getBodyRef()).getText()));
+                }
+                StoredEmail previous = mailbox.putEmail(email);
+                if (previous != null) mailbox.estimatedBytes -= estimateSize(previous);
+                mailbox.estimatedBytes += estimateSize(email);
+                if (sequence > mailbox.journalBase) {
+                    mailbox.record(new MailboxChange(sequence, MailboxChange.Type.DEPOSIT, email.getId()));
+                }
+                mailbox.sequence = Math.max(mailbox.sequence, sequence);
+            }
+        });
+        return resized[0];
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    Collection<StoredEmail> getEmails() {
+        return emails.values();
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * True se il cursore (epoch, sequence) di un client si riferisce allo stato attuale della mailbox.
+     */
+    boolean isCurrent(Long cursorEpoch, Long cursor) {
+        return cursorEpoch != null && cursorEpoch == epoch && cursor != null && cursor == sequence;
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    StoredEmail add(StoredEmail email) {
+        StoredEmail previous = putEmail(email);
+        if (previous != null) estimatedBytes -= estimateSize(previous);
+        estimatedBytes += estimateSize(email);
+
+        MailboxChange change = new MailboxChange(++sequence, MailboxChange.Type.DEPOSIT, email.getId());
+        record(change);
+        pendingAppends.add(change);
+        return previous;
+    }
+
+    /**
+     * Annulla l'ultimo add ancora da scrivere, quando la scrittura del lotto fallisce: nessun tombstone,
+     * la sequenza torna indietro e il messaggio eventualmente sostituito viene rimesso al suo posto.
+     * Con più add vanno annullati in ordine inverso. Il chiamante deve possedere il lock di scrittura
+     * dal momento dell'add, così nessun client ha visto il deposito.
+     */
+    void undoAdd(StoredEmail email, StoredEmail previous) {
+        MailboxChange last = pendingAppends.isEmpty() ? null : pendingAppends.get(pendingAppends.size() - 1);
+        if (last == null || last.getType() != MailboxChange.Type.DEPOSIT || !last.getEmailId().equals(email.getId())
+                || last.getSequence() != sequence) {
+            throw new IllegalStateException("Deposito da annullare non trovato: " + email.getId());
+        }
+        pendingAppends.remove(pendingAppends.size() - 1);
+        if (!journal.isEmpty() && journal.get(journal.size() - 1) == last) {
+            journal.remove(journal.size() - 1);
+            estimatedBytes -= CHANGE_OVERHEAD_BYTES;
+        }
+        sequence--;
+        journalBase = Math.min(journalBase, sequence);
+
+        estimatedBytes -= estimateSize(email);
+        if (previous != null) {
+            putEmail(previous);
+            estimatedBytes += estimateSize(previous);
+        } else {
+            removeEmail(email.getId());
+        }
+    }
+
+    StoredEmail remove(String emailId) {
+        StoredEmail email = removeEmail(emailId);
+        if (email == null) return null;
+
+        estimatedBytes -= estimateSize(email);
+        MailboxChange change = new MailboxChange(++sequence, MailboxChange.Type.DELETE, emailId);
+        record(change);
+        pendingAppends.add(change);
+        pendingReleases.add(email.getBodyRef());
+        return email;
+    }
+
+    boolean markAsRead(String emailId) {
+        StoredEmail email = emails.get(emailId);
+        if (email == null || email.isRead()) return false;
+
+        email.setRead(true);
+        MailboxChange change = new MailboxChange(++sequence, MailboxChange.Type.READ, emailId);
+        record(change);
+        pendingAppends.add(change);
+        return true;
+    }
+
+    MailboxUpdates changesSince(Long cursor, Long cursorEpoch, MessageStore store) {
+        return changesSince(cursor, cursorEpoch, 0, false, store);
+    }
+
+    /**
+     * Modifiche successive a cursor lette dalla coda del log, senza caricare la mailbox: i blocchi compressi
+     * precedenti al cursore non vengono decompressi. Vale solo per una mailbox fuori dalla cache (quindi senza
+     * modifiche pendenti) e per un cursore dell'incarnazione corrente.
+     * Restituisce null se il log non basta a rispondere (riscritto dopo il cursore, cursore oltre l'ultima sequenza,
+     * record da aggiornare): serve allora la mailbox completa.
+     */
+    static MailboxUpdates changesInLog(MailboxLog log, long cursor, long epoch, boolean summary, MessageStore store) throws IOException {
+        Map<String, StoredEmail> added = new LinkedHashMap<>();
+        Set<String> deleted = new LinkedHashSet<>();
+        Set<String> read = new LinkedHashSet<>();
+        boolean[] complete = {true};
+
+        long last = log.replaySince(cursor, new MailboxLog.Visitor() {
+            @Override
+            public void onCheckpoint(long sequence) {
+                complete[0] = false;
+            }
+
+            @Override
+            public void onDeposit(long sequence, StoredEmail email) {
+                if (email.hasInlineBody() || email.getSize() == null) complete[0] = false;
+                added.put(email.getId(), email);
+            }
+
+            @Override
+            public void onDelete(long sequence, String emailId) {
+                if (added.remove(emailId) == null) deleted.add(emailId);
+                read.remove(emailId);
+            }
+
+            @Override
+            public void onRead(long sequence, String emailId) {
+                StoredEmail email = added.get(emailId);
+                if (email != null) {
+                    email.setRead(true);
+                } else {
+                    read.add(emailId);
+                }
+            }
+        });
+        if (!complete[0] || last < cursor) return null;
+        return new MailboxUpdates(project(added.values(), summary, store), new ArrayList<>(deleted), new ArrayList<>(read), last, epoch, false);
+    }
+
+    /**
+     * Con pageSize &gt; 0 una sincronizzazione completa restituisce solo la pagina più recente
+     * e il cursore da cui il client prosegue con page. Con summary le email sono solo intestazioni.
+     * Un cursore di un'altra incarnazione forza la sincronizzazione completa: le sue sequenze possono
+     * essere state riassegnate a modifiche diverse.
+     */
+    MailboxUpdates changesSince(Long cursor, Long cursorEpoch, int pageSize, boolean summary, MessageStore store) {
+        if (cursor == null || cursorEpoch == null || cursorEpoch != epoch || cursor < journalBase || cursor > sequence) {
+            if (pageSize > 0) {
+                MailboxPage first = page(null, pageSize, summary, store);
+                return new MailboxUpdates(first.getEmails(), new ArrayList<>(), new ArrayList<>(), sequence, epoch, true,
+                        first.getNextCursor());
+            }
+            return new MailboxUpdates(project(emails.values(), summary, store), new ArrayList<>(), new ArrayList<>(), sequence, epoch, true);
+        }
+
+        Map<String, StoredEmail> added = new LinkedHashMap<>();
+        Set<String> deleted = new LinkedHashSet<>();
+        Set<String> read = new LinkedHashSet<>();
+
+        for (int i = firstChangeAfter(cursor); i < journal.size(); i++) {
+            MailboxChange change = journal.get(i);
+            String id = change.getEmailId();
+            switch (change.getType()) {
+                case DEPOSIT:
+                    StoredEmail email = emails.get(id);
+                    if (email != null) added.put(id, email);
+                    break;
+                case DELETE:
+                    if (added.remove(id) == null) deleted.add(id);
+                    read.remove(id);
+                    break;
+                case READ:
+                    if (!added.containsKey(id)) read.add(id);
+                    break;
+            }
+        }
+        return new MailboxUpdates(project(added.values(), summary, store), new ArrayList<>(deleted), new ArrayList<>(read), sequence, epoch, false);
+    }
+
+    /**
+     * Fino a limit messaggi dal più recente, a partire da quello successivo a pageCursor (null per iniziare).
+     * Il cursore ("millis:id") identifica una posizione nell'ordinamento e resta valido anche se
+     * nel frattempo arrivano o vengono cancellati messaggi.
+     */
+    MailboxPage page(String pageCursor, int limit, boolean summary, MessageStore store) {
+        PageKey after = parseCursor(pageCursor);
+        Collection<StoredEmail> candidates = after == null ? newestFirst.values() : newestFirst.tailMap(after, false).values();
+        return pageOf(candidates, limit, summary, store);
+    }
+
+    /**
+     * Risultati di SEARCH: i messaggi con gli id indicati, paginati dal più recente come page.
+     */
+    MailboxPage search(Collection<String> ids, String pageCursor, int limit, boolean summary, MessageStore store) {
+        PageKey after = parseCursor(pageCursor);
+        TreeMap<PageKey, StoredEmail> found = new TreeMap<>(NEWEST_FIRST);
+        for (String id : ids) {
+            StoredEmail email = emails.get(id);
+            if (email == null) continue;
+            PageKey key = keyOf(email);
+            if (after == null || NEWEST_FIRST.compare(key, after) > 0) found.put(key, email);
+        }
+        return pageOf(found.values(), limit, summary, store);
+    }
+
+    private StoredEmail putEmail(StoredEmail email) {
+        StoredEmail previous = emails.put(email.getId(), email);
+        if (previous != null) newestFirst.remove(keyOf(previous));
+        newestFirst.put(keyOf(email), email);
+        return previous;
+    }
+
+    private StoredEmail removeEmail(String emailId) {
+        StoredEmail removed = emails.remove(emailId);
+        if (removed != null) newestFirst.remove(keyOf(removed));
+        return removed;
+    }
+
+    private static PageKey keyOf(StoredEmail email) {
+        return new PageKey(timeOf(email), email.getId());
+    }
+
+    private static PageKey parseCursor(String pageCursor) {
+        if (pageCursor == null) return null;
+        int sep = pageCursor.indexOf(':');
+        try {
+            return new PageKey(Long.parseLong(pageCursor.substring(0, Math.max(sep, 0))), pageCursor.substring(sep + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Cursore di pagina non valido: " + pageCursor);
+        }
+    }
+
+    // ordered è già dal più recente: se ne leggono solo i primi limit + 1 elementi
+    private static MailboxPage pageOf(Collection<StoredEmail> ordered, int limit, boolean summary, MessageStore store) {
+        List<StoredEmail> page = new ArrayList<>();
+        Iterator<StoredEmail> it = ordered.iterator();
+        while (page.size() < limit && it.hasNext()) {
+            page.add(it.next());
+        }
+        if (!it.hasNext() || page.isEmpty()) {
+            return new MailboxPage(project(page, summary, store), null);
+        }
+        StoredEmail last = page.get(page.size() - 1);
+        return new MailboxPage(project(page, summary, store), timeOf(last) + ":" + last.getId());
+    }
+
+    private static long timeOf(StoredEmail email) {
+        return email.getTimestamp() != null ? email.getTimestamp().getTime() : 0L;
+    }
+
+    static List<Email> project(Collection<StoredEmail> stored, boolean summary, MessageStore store) {
+        return summary ? summarize(stored) : hydrate(stored, store);
+    }
+
+    /**
+     * Intestazioni senza corpo: la dimensione del testo è registrata nel log al deposito.
+     */
+    static List<Email> summarize(Collection<StoredEmail> stored) {
+        List<Email> result = new ArrayList<>(stored.size());
+        for (StoredEmail email : stored) {
+            result.add(email.toSummary());
+        }
+        return result;
+    }
+
+    static List<Email> hydrate(Collection<StoredEmail> stored, MessageStore store) {
+        List<String> refs = new ArrayList<>(stored.size());
+        for (StoredEmail email : stored) refs.add(email.getBodyRef());
+        Map<String, MessageBody> bodies = store.loadAll(refs);
+
+        List<Email> result = new ArrayList<>(stored.size());
+        for (StoredEmail email : stored) {
+            MessageBody body = bodies.get(email.getBodyRef());
+            if (body != null) result.add(email.toEmail(body));
+        }
+        return result;
+    }
+
+    boolean isDirty() {
+        return !pendingAppends.isEmpty();
+    }
+
+    /**
+     * Scrive le modifiche pendenti e restituisce i corpi dei messaggi cancellati, che ora il chiamante può rilasciare.
+     * Se ci sono cancellazioni la scrittura è forzata su disco: dopo il rilascio il corpo può non esistere più,
+     * e un crash non deve far ricomparire il messaggio.
+     */
+    List<String> flushTo(MailboxLog log, boolean sync) throws IOException {
+        if (pendingAppends.isEmpty()) return List.of();
+        logRecords += log.appendAll(pendingAppends, emails, sync || !pendingReleases.isEmpty());
+        pendingAppends.clear();
+        List<String> released = new ArrayList<>(pendingReleases);
+        pendingReleases.clear();
+        return released;
+    }
+
+    /**
+     * Frazione dei record nel log che non contribuisce più allo stato: depositi cancellati,
+     * tombstone e flag di lettura già assorbiti.
+     */
+    double getGarbageRatio() {
+        if (logRecords == 0) return 0;
+        return 1.0 - (double) emails.size() / logRecords;
+    }
+
+    long getLogRecords() {
+        return logRecords;
+    }
+
+    /**
+     * Riscrive il log con i soli messaggi presenti. Va chiamato senza modifiche pendenti.
+     */
+    void compactTo(MailboxLog log) throws IOException {
+        log.rewrite(sequence, emails.values());
+        logRecords = emails.size();
+    }
+
+    private int firstChangeAfter(long cursor) {
+        int low = 0;
+        int high = journal.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (journal.get(mid).getSequence() <= cursor) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void record(MailboxChange change) {
+        journal.add(change);
+        estimatedBytes += CHANGE_OVERHEAD_BYTES;
+        if (journal.size() > JOURNAL_LIMIT) {
+            int drop = journal.size() / 2;
+            journalBase = journal.get(drop - 1).getSequence();
+            journal.subList(0, drop).clear();
+            estimatedBytes -= (long) drop * CHANGE_OVERHEAD_BYTES;
+        }
+    }
+
+    private void resetJournal() {
+        estimatedBytes -= (long) journal.size() * CHANGE_OVERHEAD_BYTES;
+        journal.clear();
+        journalBase = sequence;
+    }
+
+    /**
+     * Email complete con gli id richiesti, nell'ordine della richiesta; gli id sconosciuti vengono ignorati.
+     */
+    List<Email> fetch(Collection<String> ids, MessageStore store) {
+        List<StoredEmail> found = new ArrayList<>();
+        for (String id : ids) {
+            StoredEmail email = emails.get(id);
+            if (email != null) found.add(email);
+        }
+        return hydrate(found, store);
+    }
+
+    static long estimateSize(StoredEmail email) {
+        return EMAIL_OVERHEAD_BYTES + length(email.getId()) + length(email.getSender())
+                + length(email.getSubject()) + length(email.getBodyRef());
+    }
+
+    private static long length(String s) {
+        return s == null ? 0 : 2L * s.length();
+    }
+}
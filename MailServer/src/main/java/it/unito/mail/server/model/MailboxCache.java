@@ -0,0 +1,216 @@
+package it.unito.mail.server.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+class MailboxCache {
+
+    interface LogSource {
+        MailboxLog logFor(String owner) throws IOException;
+    }
+
+    private static final int LOAD_STRIPES = 64;
+
+    private final LogSource logs;
+    private final Function<String, ReadWriteLock> locks;
+    private final MessageStore messageStore;
+    private final long maxBytes;
+    // il caricamento legge il log dal disco: con synchronized bloccherebbe il carrier dei thread virtuali
+    private final ReentrantLock[] loadLocks = new ReentrantLock[LOAD_STRIPES];
+
+    private final LinkedHashMap<String, Mailbox> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> dirtyOwners = new HashSet<>();
+    // una mailbox viene scaricata dalla cache solo senza modifiche pendenti: ricaricandola nello stesso processo
+    // la sequenza non torna indietro e l'incarnazione resta la stessa; dopo un riavvio ne viene scelta una nuova
+    private final Map<String, Long> epochs = new ConcurrentHashMap<>();
+    private long totalBytes = 0;
+
+    private final ScheduledExecutorService flusher;
+
+    MailboxCache(LogSource logs, Function<String, ReadWriteLock> locks, MessageStore messageStore,
+                 long maxBytes, long flushIntervalMillis) {
+        this.logs = logs;
+        this.locks = locks;
+        this.messageStore = messageStore;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < LOAD_STRIPES; i++) {
+            loadLocks[i] = new ReentrantLock();
+        }
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mailbox-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushDirty, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushDirty, "mailbox-flusher-shutdown"));
+    }
+
+    /**
+     * Restituisce la mailbox in cache, caricandola dal log se assente.
+     * Il chiamante deve possedere il lock (lettura o scrittura) dell'utente.
+     */
+    Mailbox get(String user) throws IOException {
+        String key = UserDirectory.normalize(user);
+        synchronized (this) {
+            Mailbox cached = entries.get(key);
+            if (cached != null) return cached;
+        }
+
+        Mailbox loaded;
+        ReentrantLock loadLock = loadLocks[Math.floorMod(key.hashCode(), LOAD_STRIPES)];
+        loadLock.lock();
+        try {
+            synchronized (this) {
+                Mailbox cached = entries.get(key);
+                if (cached != null) return cached;
+            }
+            long epoch = epochs.computeIfAbsent(key, k -> ThreadLocalRandom.current().nextLong());
+            loaded = Mailbox.load(key, logFor(key), messageStore, epoch);
+            synchronized (this) {
+                entries.put(key, loaded);
+                totalBytes += loaded.getEstimatedBytes();
+            }
+        } finally {
+            loadLock.unlock();
+        }
+        evictIfNeeded(key);
+        return loaded;
+    }
+
+    /**
+     * Registra una modifica da persistere in write-behind e aggiorna la stima di memoria.
+     * Il chiamante deve possedere il lock di scrittura dell'utente.
+     */
+    synchronized void markDirty(Mailbox mailbox, long previousBytes) {
+        resized(mailbox, previousBytes);
+        dirtyOwners.add(mailbox.getOwner());
+    }
+
+    /**
+     * Aggiorna la stima di memoria dopo una modifica già scritta con flushNow.
+     */
+    synchronized void resized(Mailbox mailbox, long previousBytes) {
+        if (entries.get(mailbox.getOwner()) == mailbox) {
+            totalBytes += mailbox.getEstimatedBytes() - previousBytes;
+        }
+    }
+
+    synchronized List<Mailbox> snapshot() {
+        return new ArrayList<>(entries.values());
+    }
+
+    synchronized boolean isCached(Mailbox mailbox) {
+        return entries.get(mailbox.getOwner()) == mailbox;
+    }
+
+    /**
+     * True se la mailbox dell'utente è in cache; non ne aggiorna l'ordine di accesso.
+     */
+    synchronized boolean contains(String user) {
+        return entries.containsKey(UserDirectory.normalize(user));
+    }
+
+    /**
+     * Incarnazione assegnata alla mailbox al primo caricamento in questo processo, oppure null.
+     */
+    Long epochOf(String user) {
+        return epochs.get(UserDirectory.normalize(user));
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    void flushDirty() {
+        List<Mailbox> dirty = new ArrayList<>();
+        synchronized (this) {
+            for (String owner : dirtyOwners) {
+                Mailbox mailbox = entries.get(owner);
+                if (mailbox != null) dirty.add(mailbox);
+            }
+            dirtyOwners.clear();
+        }
+        for (Mailbox mailbox : dirty) {
+            Lock lock = locks.apply(mailbox.getOwner()).writeLock();
+            lock.lock();
+            try {
+                flush(mailbox);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Scrive subito le modifiche pendenti della mailbox, poi rilascia i corpi dei messaggi cancellati.
+     * Il chiamante deve possedere il lock di scrittura dell'utente.
+     */
+    void flushNow(Mailbox mailbox, boolean sync) throws IOException {
+        if (!mailbox.isDirty()) return;
+        // le modifiche sono già scritte: un rilascio fallito non deve farle sembrare perse al chiamante
+        messageStore.releaseAll(mailbox.flushTo(logFor(mailbox.getOwner()), sync));
+    }
+
+    private MailboxLog logFor(String owner) throws IOException {
+        return logs.logFor(owner);
+    }
+
+    private void flush(Mailbox mailbox) {
+        try {
+            flushNow(mailbox, false);
+        } catch (IOException e) {
+            System.err.println("Errore scrittura mailbox " + mailbox.getOwner() + ": " + e.getMessage());
+            synchronized (this) {
+                dirtyOwners.add(mailbox.getOwner());
+            }
+        }
+    }
+
+    private void evictIfNeeded(String requested) {
+        List<Mailbox> candidates = new ArrayList<>();
+        synchronized (this) {
+            if (totalBytes <= maxBytes) return;
+            long excess = totalBytes - maxBytes;
+            Iterator<Mailbox> it = entries.values().iterator();
+            while (it.hasNext() && excess > 0) {
+                Mailbox mailbox = it.next();
+                if (mailbox.getOwner().equals(requested)) continue;
+                candidates.add(mailbox);
+                excess -= mailbox.getEstimatedBytes();
+            }
+        }
+
+        for (Mailbox mailbox : candidates) {
+            Lock lock = locks.apply(mailbox.getOwner()).writeLock();
+            if (!lock.tryLock()) continue;
+            try {
+                flush(mailbox);
+                if (mailbox.isDirty()) continue;
+                synchronized (this) {
+                    if (entries.get(mailbox.getOwner()) == mailbox && totalBytes > maxBytes) {
+                        entries.remove(mailbox.getOwner());
+                        totalBytes -= mailbox.getEstimatedBytes();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package it.unito.mail.server.model;
+
+class MailboxChange {
+
+    enum Type { DEPOSIT, DELETE, READ }
+
+    private final long sequence;
+    private final Type type;
+    private final String emailId;
+
+    MailboxChange(long sequence, Type type, String emailId) {
+        this.sequence = sequence;
+        this.type = type;
+        this.emailId = emailId;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    String getEmailId() {
+        return emailId;
+    }
+}
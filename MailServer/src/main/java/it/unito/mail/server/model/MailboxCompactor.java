@@ -0,0 +1,89 @@
+package it.unito.mail.server.model;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Riscrive in background i log delle mailbox in cache la cui quota di record inutili
+ * (depositi cancellati, tombstone, flag di lettura) supera la soglia configurata,
+ * e passa ogni mailbox a IndexCompaction per il file dell'indice di ricerca.
+ */
+class MailboxCompactor {
+
+    interface IndexCompaction {
+        void compactIndex(String owner) throws IOException;
+    }
+
+    private final MailboxCache cache;
+    private final MailboxCache.LogSource logs;
+    private final Function<String, ReadWriteLock> locks;
+    private final IndexCompaction indexes;
+    private final double garbageThreshold;
+    private final long minRecords;
+
+    MailboxCompactor(MailboxCache cache, MailboxCache.LogSource logs, Function<String, ReadWriteLock> locks,
+                     IndexCompaction indexes, double garbageThreshold, long minRecords, long intervalMillis) {
+        this.cache = cache;
+        this.logs = logs;
+        this.locks = locks;
+        this.indexes = indexes;
+        this.garbageThreshold = garbageThreshold;
+        this.minRecords = minRecords;
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mailbox-compactor");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::compactEligible, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void compactEligible() {
+        for (Mailbox mailbox : cache.snapshot()) {
+            try {
+                compact(mailbox);
+            } catch (IOException e) {
+                System.err.println("Compattazione fallita per " + mailbox.getOwner() + ": " + e.getMessage());
+            }
+            try {
+                indexes.compactIndex(mailbox.getOwner());
+            } catch (IOException e) {
+                System.err.println("Compattazione dell'indice di ricerca fallita per " + mailbox.getOwner() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean isEligible(Mailbox mailbox) {
+        return mailbox.getLogRecords() >= minRecords && mailbox.getGarbageRatio() >= garbageThreshold;
+    }
+
+    private void compact(Mailbox mailbox) throws IOException {
+        ReadWriteLock lock = locks.apply(mailbox.getOwner());
+        lock.writeLock().lock();
+        boolean downgraded = false;
+        try {
+            if (!cache.isCached(mailbox) || !isEligible(mailbox)) return;
+            cache.flushNow(mailbox, false);
+
+            // Durante la riscrittura bastano i lettori esclusi dalle scritture: si declassa il lock.
+            lock.readLock().lock();
+            lock.writeLock().unlock();
+            downgraded = true;
+
+            long before = mailbox.getLogRecords();
+            mailbox.compactTo(logs.logFor(mailbox.getOwner()));
+            System.out.println("Compattata mailbox " + mailbox.getOwner() + ": " + before + " -> " + mailbox.getLogRecords() + " record");
+        } finally {
+            if (downgraded) {
+                lock.readLock().unlock();
+            } else {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package it.unito.mail.server.model;
+
+import com.google.gson.Gson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Log append-only di una singola mailbox.
+ * Formato: header (magic + versione) seguito da record [lunghezza][tipo][sequenza][crc32][payload].
+ * Il payload è il JSON dello StoredEmail per DEPOSIT, l'id del messaggio per DELETE (tombstone) e READ.
+ * In modalità compressa (versione 3) i record sono raggruppati in record BLOCK, il cui payload è
+ * [lunghezza originale][numero record][record interni compressi con Deflate]: le riscritture
+ * formano blocchi da blockRecords record, ogni append abbastanza grande diventa un blocco.
+ * L'intestazione dei record BLOCK resta in chiaro: replaySince salta i blocchi già noti senza decomprimerli.
+ * I file in versione 1 non hanno il campo sequenza: viene assegnato in ordine di lettura.
+ */
+class MailboxLog {
+
+    static final byte DEPOSIT = 1;
+    static final byte CHECKPOINT = 2;
+    static final byte DELETE = 3;
+    static final byte READ = 4;
+    static final byte BLOCK = 5;
+
+    interface Visitor {
+        void onCheckpoint(long sequence) throws IOException;
+        void onDeposit(long sequence, StoredEmail email) throws IOException;
+        void onDelete(long sequence, String emailId) throws IOException;
+        void onRead(long sequence, String emailId) throws IOException;
+    }
+
+    private static final int MAGIC = 0x4D424C47;
+    private static final byte VERSION = 2;
+    private static final byte VERSION_BLOCKS = 3;
+    private static final int HEADER_SIZE = 5;
+    private static final int FRAME_OVERHEAD_V1 = 9;
+    private static final int FRAME_OVERHEAD = 17;
+    // sotto questa dimensione un append non viene compresso: Deflate non guadagnerebbe nulla
+    private static final int MIN_BLOCK_BYTES = 512;
+
+    private final Path path;
+    private final Gson gson;
+    private final int blockRecords;
+    private boolean recovered = false;
+    private boolean legacyFormat = false;
+    private int fileVersion = 0;
+
+    /**
+     * @param blockRecords numero di record per blocco compresso nelle riscritture; 0 per non comprimere
+     */
+    MailboxLog(Path path, Gson gson, int blockRecords) {
+        this.path = path;
+        this.gson = gson;
+        this.blockRecords = blockRecords;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    boolean exists() {
+        return Files.exists(path);
+    }
+
+    /**
+     * True se l'ultimo replay ha trovato un formato da riscrivere: la versione 1, oppure un log
+     * in chiaro quando è richiesta la compressione.
+     */
+    boolean needsUpgrade() {
+        return legacyFormat || (blockRecords > 0 && fileVersion == VERSION);
+    }
+
+    /**
+     * Accoda i record delle modifiche con una sola scrittura; con sync=true forza i dati su disco prima di tornare.
+     * I depositi il cui messaggio non è più in mailbox vengono saltati: il tombstone successivo li renderebbe comunque inattivi.
+     * In un log compresso i record vengono scritti come un unico blocco se superano MIN_BLOCK_BYTES.
+     */
+    int appendAll(List<MailboxChange> changes, Map<String, StoredEmail> emails, boolean sync) throws IOException {
+        recoverIfNeeded();
+        List<ByteBuffer> frames = new ArrayList<>(changes.size());
+        for (MailboxChange change : changes) {
+            switch (change.getType()) {
+                case DEPOSIT:
+                    StoredEmail email = emails.get(change.getEmailId());
+                    if (email != null) {
+                        frames.add(frame(DEPOSIT, change.getSequence(), gson.toJson(email)));
+                    }
+                    break;
+                case DELETE:
+                    frames.add(frame(DELETE, change.getSequence(), change.getEmailId()));
+                    break;
+                case READ:
+                    frames.add(frame(READ, change.getSequence(), change.getEmailId()));
+                    break;
+            }
+        }
+        if (frames.isEmpty()) return 0;
+
+        Files.createDirectories(path.getParent());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long start = channel.size();
+            try {
+                if (start == 0) {
+                    fileVersion = blockRecords > 0 ? VERSION_BLOCKS : VERSION;
+                    write(channel, header((byte) fileVersion));
+                }
+                ByteBuffer[] buffers = fileVersion == VERSION_BLOCKS
+                        ? compressed(frames, changes.get(changes.size() - 1).getSequence())
+                        : frames.toArray(new ByteBuffer[0]);
+                long remaining = 0;
+                for (ByteBuffer frame : buffers) remaining += frame.remaining();
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                undoAppend(channel, start, e);
+                throw e;
+            }
+        } catch (IOException e) {
+            recovered = false;
+            throw e;
+        }
+        return frames.size();
+    }
+
+    /**
+     * Riporta il file alla lunghezza precedente un append fallito: i record scritti (anche per intero)
+     * non devono ricomparire al riavvio, perché il chiamante annulla le modifiche e ne riusa le sequenze.
+     */
+    private void undoAppend(FileChannel channel, long start, IOException cause) {
+        try {
+            channel.truncate(start);
+            channel.force(false);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            System.err.println("Impossibile annullare l'append fallito su " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static ByteBuffer[] compressed(List<ByteBuffer> frames, long sequence) {
+        int rawLength = 0;
+        for (ByteBuffer frame : frames) rawLength += frame.remaining();
+        if (rawLength < MIN_BLOCK_BYTES) return frames.toArray(new ByteBuffer[0]);
+
+        byte[] raw = new byte[rawLength];
+        ByteBuffer rawBuffer = ByteBuffer.wrap(raw);
+        for (ByteBuffer frame : frames) rawBuffer.put(frame.duplicate());
+        byte[] deflated = deflate(raw);
+        if (deflated.length + 8 >= rawLength) return frames.toArray(new ByteBuffer[0]);
+
+        ByteBuffer payload = ByteBuffer.allocate(8 + deflated.length);
+        payload.putInt(rawLength).putInt(frames.size()).put(deflated).flip();
+        return new ByteBuffer[]{frame(BLOCK, sequence, payload)};
+    }
+
+    void replay(Visitor visitor) throws IOException {
+        if (!Files.exists(path)) return;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long validEnd = scan(channel, Long.MIN_VALUE, visitor).end;
+            if (validEnd < channel.size()) {
+                System.err.println("Record incompleto in coda a " + path + ", ignorato.");
+            }
+        }
+    }
+
+    /**
+     * Come replay, ma visita solo i record con sequenza successiva a since: quelli precedenti, compresi
+     * i blocchi compressi, si saltano leggendone solo l'intestazione, senza decomprimerli (la sequenza
+     * di un blocco è la più alta dei record che contiene). Restituisce la sequenza più alta nel log.
+     * Un checkpoint successivo a since viene visitato: il log è stato riscritto e i record precedenti non ci sono più.
+     */
+    long replaySince(long since, Visitor visitor) throws IOException {
+        if (!Files.exists(path)) return 0;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() >= HEADER_SIZE && readVersion(channel) == 1) {
+                throw new IOException("Log in versione 1 senza sequenze, lettura parziale non possibile: " + path);
+            }
+            return scan(channel, since, visitor).lastSequence;
+        }
+    }
+
+    void rewrite(long sequence, Collection<StoredEmail> emails) throws IOException {
+        try (Rewriter rewriter = openRewriter(sequence)) {
+            for (StoredEmail email : emails) {
+                rewriter.add(email);
+            }
+            rewriter.commit();
+        }
+    }
+
+    /**
+     * Apre una riscrittura completa del log su file temporaneo: i record vengono aggiunti uno alla volta
+     * e il file sostituisce l'originale solo a commit().
+     */
+    Rewriter openRewriter(long sequence) throws IOException {
+        return new Rewriter(sequence);
+    }
+
+    class Rewriter implements Closeable {
+
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final long sequence;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private int blockCount = 0;
+        private int records = 0;
+        private boolean committed = false;
+
+        private Rewriter(long sequence) throws IOException {
+            this.sequence = sequence;
+            this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.createDirectories(path.getParent());
+            this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            buffer.put(header(blockRecords > 0 ? VERSION_BLOCKS : VERSION));
+            buffer.put(frame(CHECKPOINT, sequence, ""));
+        }
+
+        void add(StoredEmail email) throws IOException {
+            ByteBuffer frame = frame(DEPOSIT, sequence, gson.toJson(email));
+            records++;
+            if (blockRecords > 0) {
+                block.write(frame.array(), frame.position(), frame.remaining());
+                if (++blockCount >= blockRecords) {
+                    emitBlock();
+                }
+            } else {
+                emit(frame);
+            }
+        }
+
+        int commit() throws IOException {
+            emitBlock();
+            drain();
+            channel.force(true);
+            channel.close();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            recovered = true;
+            legacyFormat = false;
+            fileVersion = blockRecords > 0 ? VERSION_BLOCKS : VERSION;
+            return records;
+        }
+
+        private void emitBlock() throws IOException {
+            if (blockCount == 0) return;
+            byte[] raw = block.toByteArray();
+            byte[] compressed = deflate(raw);
+
+            ByteBuffer payload = ByteBuffer.allocate(8 + compressed.length);
+            payload.putInt(raw.length).putInt(blockCount).put(compressed).flip();
+            emit(frame(BLOCK, sequence, payload));
+
+            block.reset();
+            blockCount = 0;
+        }
+
+        private void emit(ByteBuffer frame) throws IOException {
+            if (frame.remaining() > buffer.remaining()) {
+                drain();
+            }
+            if (frame.remaining() > buffer.capacity()) {
+                write(channel, frame);
+            } else {
+                buffer.put(frame);
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            write(channel, buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    private void recoverIfNeeded() throws IOException {
+        if (recovered || !Files.exists(path)) {
+            recovered = true;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long validEnd = scan(channel, Long.MIN_VALUE, null).end;
+            if (validEnd < channel.size()) {
+                channel.truncate(validEnd);
+            }
+        }
+        recovered = true;
+    }
+
+    private int readVersion(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            throw new IOException("Formato log non riconosciuto: " + path);
+        }
+        byte version = header.get();
+        if (version != 1 && version != VERSION && version != VERSION_BLOCKS) {
+            throw new IOException("Versione log non supportata (" + version + "): " + path);
+        }
+        fileVersion = version;
+        return version;
+    }
+
+    // fine dell'ultimo record valido e sequenza più alta letta
+    private static final class Scan {
+        long end;
+        long lastSequence;
+    }
+
+    private Scan scan(FileChannel channel, long since, Visitor visitor) throws IOException {
+        long size = channel.size();
+        if (size == 0) return new Scan();
+
+        int version = readVersion(channel);
+        legacyFormat = version == 1;
+        if (legacyFormat && visitor == null) {
+            throw new IOException("Log in versione 1 non aggiornabile in append: " + path);
+        }
+
+        int overhead = version == 1 ? FRAME_OVERHEAD_V1 : FRAME_OVERHEAD;
+        return scanFrom(channel, HEADER_SIZE, size, overhead, version, since, visitor);
+    }
+
+    private Scan scanFrom(FileChannel channel, long position, long size, int overhead, int version, long since, Visitor visitor)
+            throws IOException {
+        Scan scan = new Scan();
+        long implicitSequence = 0;
+        ByteBuffer frameHeader = ByteBuffer.allocate(overhead);
+        CRC32 crc = new CRC32();
+
+        while (position + overhead <= size) {
+            frameHeader.clear();
+            readFully(channel, frameHeader, position);
+            frameHeader.flip();
+            int length = frameHeader.getInt();
+            byte type = frameHeader.get();
+            long sequence = version == 1 ? ++implicitSequence : frameHeader.getLong();
+            int checksum = frameHeader.getInt();
+
+            if (length < 0 || position + overhead + length > size) break;
+            if (sequence <= since) {
+                scan.lastSequence = Math.max(scan.lastSequence, sequence);
+                position += overhead + length;
+                continue;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + overhead);
+            payload.flip();
+
+            crc.reset();
+            crc.update(type);
+            if (version != 1) crc.update(longBytes(sequence));
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) break;
+
+            if (visitor != null) {
+                dispatch(type, sequence, payload, since, visitor);
+            }
+            scan.lastSequence = Math.max(scan.lastSequence, sequence);
+            position += overhead + length;
+        }
+        scan.end = position;
+        return scan;
+    }
+
+    private void dispatch(byte type, long sequence, ByteBuffer payload, long since, Visitor visitor) throws IOException {
+        if (type == BLOCK) {
+            replayBlock(inflate(payload), since, visitor);
+            return;
+        }
+
+        String text = StandardCharsets.UTF_8.decode(payload).toString();
+        switch (type) {
+            case DEPOSIT:
+                visitor.onDeposit(sequence, gson.fromJson(text, StoredEmail.class));
+                break;
+            case CHECKPOINT:
+                visitor.onCheckpoint(sequence);
+                break;
+            case DELETE:
+                visitor.onDelete(sequence, text);
+                break;
+            case READ:
+                visitor.onRead(sequence, text);
+                break;
+        }
+    }
+
+    private void replayBlock(ByteBuffer block, long since, Visitor visitor) throws IOException {
+        CRC32 crc = new CRC32();
+        while (block.remaining() >= FRAME_OVERHEAD) {
+            int length = block.getInt();
+            byte type = block.get();
+            long sequence = block.getLong();
+            int checksum = block.getInt();
+            if (length < 0 || length > block.remaining()) {
+                throw new IOException("Blocco compresso corrotto in " + path);
+            }
+
+            ByteBuffer payload = block.slice(block.position(), length);
+            block.position(block.position() + length);
+
+            crc.reset();
+            crc.update(type);
+            crc.update(longBytes(sequence));
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Checksum errato in un blocco compresso di " + path);
+            }
+            if (sequence > since) {
+                dispatch(type, sequence, payload, since, visitor);
+            }
+        }
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 3));
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private ByteBuffer inflate(ByteBuffer payload) throws IOException {
+        int rawLength = payload.getInt();
+        payload.getInt();
+        byte[] raw = new byte[rawLength];
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            int offset = 0;
+            while (offset < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, offset, rawLength - offset);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                offset += n;
+            }
+            if (offset != rawLength) {
+                throw new IOException("Blocco compresso troncato in " + path);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Blocco compresso non valido in " + path, e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(raw);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) break;
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer header(byte version) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put(version).flip();
+        return header;
+    }
+
+    private static byte[] longBytes(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static ByteBuffer frame(byte type, long sequence, String content) {
+        return frame(type, sequence, ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static ByteBuffer frame(byte type, long sequence, ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(longBytes(sequence));
+        crc.update(payload.duplicate());
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_OVERHEAD + payload.remaining());
+        frame.putInt(payload.remaining()).put(type).putLong(sequence).putInt((int) crc.getValue()).put(payload).flip();
+        return frame;
+    }
+}
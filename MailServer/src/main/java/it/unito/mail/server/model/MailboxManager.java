@@ -1,36 +1,85 @@
 package it.unito.mail.server.model;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import it.unito.mail.common.Email;
-import it.unito.mail.common.Packet;
+import it.unito.mail.common.SearchTokenizer;
 import java.io.*;
-import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class MailboxManager {
 
     private static final String[] VALID_USERS = {"user1@mail.com", "user2@mail.com", "user3@mail.com"};
     private static final String DATA_DIR = "ServerData";
-    private final Gson gson;
+    private static final String MAILBOX_DIR = "mailboxes";
+    private static final long CACHE_MAX_BYTES = Long.getLong("mail.cache.maxBytes", 64L * 1024 * 1024);
+    private static final long CACHE_FLUSH_MILLIS = Long.getLong("mail.cache.flushMillis", 500L);
+    private static final long BODY_CACHE_MAX_BYTES = Long.getLong("mail.bodyCache.maxBytes", 16L * 1024 * 1024);
+    private static final int DELIVERY_MAX_BATCH = Integer.getInteger("mail.delivery.maxBatch", 64);
+    private static final long DELIVERY_LINGER_MILLIS = Long.getLong("mail.delivery.lingerMillis", 2L);
+    private static final int DELIVERY_THREADS = Integer.getInteger("mail.delivery.threads", 4);
+    private static final double COMPACTION_GARBAGE_RATIO = Double.parseDouble(System.getProperty("mail.compaction.garbageRatio", "0.5"));
+    private static final long COMPACTION_MIN_RECORDS = Long.getLong("mail.compaction.minRecords", 100L);
+    private static final long COMPACTION_INTERVAL_MILLIS = Long.getLong("mail.compaction.intervalMillis", 30_000L);
+    private static final boolean STORAGE_COMPRESSION = "deflate".equalsIgnoreCase(System.getProperty("mail.storage.compression", "none"));
+    private static final int STORAGE_BLOCK_RECORDS = Integer.getInteger("mail.storage.blockRecords", 128);
+    private static final boolean DELIVERY_FSYNC = Boolean.parseBoolean(System.getProperty("mail.delivery.fsync", "true"));
+    private static final int SEARCH_INDEX_ENTRIES = Integer.getInteger("mail.search.cachedIndexes", 64);
+    private static final long MIGRATION_RETRY_MILLIS = Long.getLong("mail.migration.retryMillis", 30_000L);
+    private final Gson gson = new Gson();
 
+    private final UserDirectory users;
     private final Map<String, ReadWriteLock> userLocks = new ConcurrentHashMap<>();
+    private final Map<String, MailboxLog> logs = new ConcurrentHashMap<>();
+    private final Map<String, Lock> migrationLocks = new ConcurrentHashMap<>();
+    // ultima migrazione fallita per utente: fino a MIGRATION_RETRY_MILLIS l'errore viene riportato senza riprovare
+    private final Map<String, FailedMigration> failedMigrations = new ConcurrentHashMap<>();
+    // record accodati agli indici di ricerca non caricati, per decidere quando compattarne il file
+    private final Map<String, AtomicLong> indexAppends = new ConcurrentHashMap<>();
+    private final MessageStore messageStore;
+    private final MailboxCache cache;
+    private final DeliveryPipeline deliveryPipeline;
+    private final MailboxCompactor compactor;
+    private final MailboxWaiters waiters = new MailboxWaiters();
+    // indici di ricerca caricati in memoria, i meno usati vengono scartati (restano su disco)
+    private final Map<String, SearchIndex> searchIndexes = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SearchIndex> eldest) {
+                    return size() > SEARCH_INDEX_ENTRIES;
+                }
+            });
 
     private static MailboxManager instance;
 
     private MailboxManager() {
-        this.gson = new GsonBuilder().setPrettyPrinting().create();
-        initializeStorage();
+        this.users = loadUserDirectory();
+        this.messageStore = new MessageStore(Paths.get(DATA_DIR, "messages"), gson, BODY_CACHE_MAX_BYTES, STORAGE_COMPRESSION);
+        this.cache = new MailboxCache(this::getLog, this::getUserLock, messageStore, CACHE_MAX_BYTES, CACHE_FLUSH_MILLIS);
+        this.deliveryPipeline = new DeliveryPipeline(this::commitBatch, DELIVERY_MAX_BATCH, DELIVERY_LINGER_MILLIS, DELIVERY_THREADS);
+        this.compactor = new MailboxCompactor(cache, this::getLog, this::getUserLock, this::compactSearchIndex,
+                COMPACTION_GARBAGE_RATIO, COMPACTION_MIN_RECORDS, COMPACTION_INTERVAL_MILLIS);
     }
 
     public static synchronized MailboxManager getInstance() {
@@ -40,40 +89,181 @@ public class MailboxManager {
         return instance;
     }
 
+    private static UserDirectory loadUserDirectory() {
+        try {
+            UserDirectory directory = UserDirectory.load(Paths.get(DATA_DIR, "users.txt"), VALID_USERS);
+            System.out.println("Utenti registrati: " + directory.size());
+            return directory;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile leggere l'elenco utenti", e);
+        }
+    }
+
     private ReadWriteLock getUserLock(String email) {
-        return userLocks.computeIfAbsent(email.toLowerCase(), k -> new ReentrantReadWriteLock());
+        return userLocks.computeIfAbsent(UserDirectory.normalize(email), k -> new ReentrantReadWriteLock());
     }
 
-    private void initializeStorage() {
+    private record FailedMigration(IOException error, long at) {}
+
+    /**
+     * Restituisce il log della mailbox nella sua sottocartella, migrando al primo accesso
+     * i formati precedenti (ServerData/<utente>.json o ServerData/<utente>.log).
+     * La migrazione avviene sotto un lock dell'utente, fuori dalla mappa dei log, così non blocca gli altri utenti.
+     */
+    private MailboxLog getLog(String user) throws IOException {
+        String k = UserDirectory.normalize(user);
+        MailboxLog log = logs.get(k);
+        if (log != null) return log;
+
+        Lock lock = migrationLocks.computeIfAbsent(k, key -> new ReentrantLock());
+        lock.lock();
         try {
-            Files.createDirectories(Paths.get(DATA_DIR));
-            for (String user : VALID_USERS) {
-                Path userFile = Paths.get(DATA_DIR, user + ".json");
-                if (!Files.exists(userFile)) {
-                    saveListToFile(userFile, new ArrayList<>());
-                    System.out.println("Creata mailbox per: " + user);
+            log = logs.get(k);
+            if (log != null) return log;
+
+            FailedMigration failed = failedMigrations.get(k);
+            if (failed != null && System.currentTimeMillis() - failed.at() < MIGRATION_RETRY_MILLIS) {
+                throw new IOException("Migrazione mailbox fallita per " + k, failed.error());
+            }
+            Path path = Paths.get(DATA_DIR, MAILBOX_DIR, UserDirectory.shardOf(k), k + ".log");
+            log = new MailboxLog(path, gson, STORAGE_COMPRESSION ? STORAGE_BLOCK_RECORDS : 0);
+            try {
+                migrateLegacyStorage(k, log);
+            } catch (IOException e) {
+                failedMigrations.put(k, new FailedMigration(e, System.currentTimeMillis()));
+                throw new IOException("Migrazione mailbox fallita per " + k, e);
+            }
+            failedMigrations.remove(k);
+            logs.put(k, log);
+            return log;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Path searchIndexPath(String user) {
+        String k = UserDirectory.normalize(user);
+        return Paths.get(DATA_DIR, MAILBOX_DIR, UserDirectory.shardOf(k), k + ".idx");
+    }
+
+    private void migrateLegacyStorage(String user, MailboxLog log) throws IOException {
+        if (log.exists()) return;
+
+        Path flatLog = Paths.get(DATA_DIR, user + ".log");
+        Path legacyFile = Paths.get(DATA_DIR, user + ".json");
+        if (Files.exists(flatLog)) {
+            Files.createDirectories(log.getPath().getParent());
+            Files.move(flatLog, log.getPath());
+        } else if (Files.exists(legacyFile)) {
+            migrateLegacyMailbox(legacyFile, log);
+        }
+    }
+
+    private void migrateLegacyMailbox(Path legacyFile, MailboxLog log) throws IOException {
+        int migrated;
+        // riferimenti presi finora: se la migrazione non arriva al commit vanno restituiti
+        List<String> stored = new ArrayList<>();
+        try (Reader reader = Files.newBufferedReader(legacyFile);
+             JsonReader json = new JsonReader(reader);
+             MailboxLog.Rewriter rewriter = log.openRewriter(0)) {
+
+            if (Files.size(legacyFile) > 0 && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    Email email = gson.fromJson(json, Email.class);
+                    String bodyRef = messageStore.store(StoredEmail.bodyOf(email), 1);
+                    stored.add(bodyRef);
+                    rewriter.add(StoredEmail.of(email, bodyRef));
                 }
+                json.endArray();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            migrated = rewriter.commit();
+        } catch (IOException | RuntimeException e) {
+            messageStore.releaseAll(stored);
+            throw e;
         }
+        Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Migrata mailbox " + legacyFile.getFileName() + " (" + migrated + " messaggi)");
     }
 
     public boolean userExists(String emailAddress) {
-        for (String user : VALID_USERS) {
-            if (user.equalsIgnoreCase(emailAddress)) return true;
-        }
-        return false;
+        return users.contains(emailAddress);
+    }
+
+    public Set<String> getUsers() {
+        return users.getUsers();
     }
 
     public void depositEmail(String recipient, Email email) throws IOException {
+        List<String> failed = deliver(email, Collections.singletonList(recipient));
+        if (!failed.isEmpty()) {
+            throw new IOException("Consegna fallita per: " + recipient);
+        }
+    }
+
+    /**
+     * Consegna un messaggio a più destinatari salvandone il corpo una sola volta.
+     * Restituisce i destinatari per cui la consegna non è riuscita.
+     */
+    public List<String> deliver(Email email, List<String> recipients) throws IOException {
+        String bodyRef = messageStore.store(StoredEmail.bodyOf(email), recipients.size());
+        // il testo è in memoria: le parole per l'indice si calcolano qui, non rileggendo il corpo sotto il lock
+        String[] searchTokens = SearchIndex.tokensOf(email);
+
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (String recipient : recipients) {
+            acks.add(deliveryPipeline.submit(recipient, new DeliveryPipeline.Deposit(StoredEmail.of(email, bodyRef), searchTokens)));
+        }
+
+        List<String> failed = new ArrayList<>();
+        for (int i = 0; i < recipients.size(); i++) {
+            try {
+                acks.get(i).get();
+            } catch (ExecutionException e) {
+                failed.add(recipients.get(i));
+                messageStore.release(bodyRef);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Consegna interrotta", e);
+            }
+        }
+        return failed;
+    }
+
+    private void commitBatch(String recipient, List<DeliveryPipeline.Deposit> deposits) throws IOException {
+        List<StoredEmail> batch = new ArrayList<>(deposits.size());
+        for (DeliveryPipeline.Deposit deposit : deposits) batch.add(deposit.email());
+
         ReadWriteLock lock = getUserLock(recipient);
         lock.writeLock().lock();
         try {
-            Path path = Paths.get(DATA_DIR, recipient + ".json");
-            List<Email> inbox = loadListFromFile(path);
-            inbox.add(email);
-            saveListToFile(path, inbox);
+            Mailbox mailbox = cache.get(recipient);
+            long previousBytes = mailbox.getEstimatedBytes();
+            List<StoredEmail> replaced = new ArrayList<>(batch.size());
+            for (StoredEmail email : batch) {
+                replaced.add(mailbox.add(email));
+            }
+
+            try {
+                cache.flushNow(mailbox, DELIVERY_FSYNC);
+            } catch (IOException e) {
+                // appendAll ha riportato il log alla lunghezza precedente e nessuno ha visto i depositi:
+                // si annullano in memoria, senza tombstone;
+                // le modifiche precedenti ancora pendenti restano al flusher
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    mailbox.undoAdd(batch.get(i), replaced.get(i));
+                }
+                cache.markDirty(mailbox, previousBytes);
+                throw e;
+            }
+            cache.resized(mailbox, previousBytes);
+
+            waiters.signal(UserDirectory.normalize(recipient));
+            indexDeposits(recipient, deposits);
+            for (StoredEmail previous : replaced) {
+                if (previous != null) messageStore.release(previous.getBodyRef());
+            }
         } finally {
             lock.writeLock().unlock();
         }
@@ -85,8 +275,7 @@ public class MailboxManager {
         ReadWriteLock lock = getUserLock(user);
         lock.readLock().lock();
         try {
-            Path path = Paths.get(DATA_DIR, user + ".json");
-            return loadListFromFile(path);
+            return Mailbox.hydrate(cache.get(user).getEmails(), messageStore);
         } catch (IOException e) {
             e.printStackTrace();
             return new ArrayList<>();
@@ -95,75 +284,299 @@ public class MailboxManager {
         }
     }
 
-    public List<Email> getInbox(String user, java.util.Date since) {
-        List<Email> allEmails = getInbox(user);
+    public MailboxUpdates getUpdates(String user, Long sinceSequence, Long epoch) throws IOException {
+        return getUpdates(user, sinceSequence, epoch, 0, false);
+    }
+
+    /**
+     * Come getUpdates, ma se serve una sincronizzazione completa e pageSize &gt; 0 restituisce solo
+     * i pageSize messaggi più recenti; gli altri si leggono con getPage dal cursore ricevuto.
+     * Con summary le email sono solo intestazioni, il corpo si legge con fetchEmails.
+     */
+    public MailboxUpdates getUpdates(String user, Long sinceSequence, Long epoch, int pageSize, boolean summary) throws IOException {
+        ReadWriteLock lock = getUserLock(user);
+        lock.readLock().lock();
+        try {
+            MailboxUpdates tail = changesInLog(user, sinceSequence, epoch, summary);
+            if (tail != null) return tail;
+            return cache.get(user).changesSince(sinceSequence, epoch, pageSize, summary, messageStore);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Per una mailbox scaricata dalla cache e un cursore della sua incarnazione, le modifiche si leggono
+     * dalla coda del log senza ricaricarla; null se serve la mailbox completa.
+     * Il chiamante deve possedere il lock dell'utente: il log di una mailbox fuori cache non cambia.
+     */
+    private MailboxUpdates changesInLog(String user, Long sinceSequence, Long epoch, boolean summary) throws IOException {
+        if (sinceSequence == null || epoch == null || cache.contains(user) || !epoch.equals(cache.epochOf(user))) {
+            return null;
+        }
+        return Mailbox.changesInLog(getLog(user), sinceSequence, epoch, summary, messageStore);
+    }
 
+    public MailboxPage getPage(String user, String pageCursor, int pageSize, boolean summary) throws IOException {
+        ReadWriteLock lock = getUserLock(user);
+        lock.readLock().lock();
+        try {
+            return cache.get(user).page(pageCursor, pageSize, summary, messageStore);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Email> fetchEmails(String user, Collection<String> emailIds) throws IOException {
+        ReadWriteLock lock = getUserLock(user);
+        lock.readLock().lock();
+        try {
+            return cache.get(user).fetch(emailIds, messageStore);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Restituisce un future che si completa quando la mailbox supera sinceSequence, oppure allo scadere
+     * di timeoutMillis. Se ci sono già modifiche (o il client non ha un cursore valido) è già completato.
+     */
+    public CompletableFuture<Void> awaitChanges(String user, Long sinceSequence, Long epoch, long timeoutMillis) throws IOException {
+        ReadWriteLock lock = getUserLock(user);
+        lock.readLock().lock();
+        try {
+            MailboxUpdates tail = changesInLog(user, sinceSequence, epoch, true);
+            boolean current = tail != null ? tail.getSequence() == sinceSequence : cache.get(user).isCurrent(epoch, sinceSequence);
+            if (!current) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return waiters.register(UserDirectory.normalize(user), timeoutMillis);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Email> getInbox(String user, java.util.Date since) {
         if (since == null) {
-            return allEmails;
+            return getInbox(user);
         }
+        if (!userExists(user)) return Collections.emptyList();
 
-        List<Email> newEmails = new ArrayList<>();
-        for (Email e : allEmails) {
-            if (e.getTimestamp().after(since)) {
-                newEmails.add(e);
+        ReadWriteLock lock = getUserLock(user);
+        lock.readLock().lock();
+        try {
+            List<StoredEmail> newEmails = new ArrayList<>();
+            for (StoredEmail e : cache.get(user).getEmails()) {
+                if (e.getTimestamp().after(since)) {
+                    newEmails.add(e);
+                }
             }
+            return Mailbox.hydrate(newEmails, messageStore);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        } finally {
+            lock.readLock().unlock();
         }
-        return newEmails;
     }
 
     public void deleteEmail(String user, String emailId) throws IOException {
+        deleteEmails(user, Collections.singletonList(emailId));
+    }
+
+    /**
+     * Cancella più messaggi con un'unica acquisizione del lock: le tombstone finiscono nella stessa append.
+     * I corpi vengono rilasciati dal flush che scrive le tombstone, non qui.
+     * Restituisce il numero di messaggi effettivamente rimossi.
+     */
+    public int deleteEmails(String user, Collection<String> emailIds) throws IOException {
+        List<StoredEmail> removed = new ArrayList<>();
         ReadWriteLock lock = getUserLock(user);
         lock.writeLock().lock();
         try {
-            Path path = Paths.get(DATA_DIR, user + ".json");
-            List<Email> inbox = loadListFromFile(path);
-
-            boolean removed = inbox.removeIf(e -> e.getId().equals(emailId));
+            Mailbox mailbox = cache.get(user);
+            long previousBytes = mailbox.getEstimatedBytes();
 
-            if (removed) {
-                saveListToFile(path, inbox);
+            for (String emailId : emailIds) {
+                StoredEmail email = mailbox.remove(emailId);
+                if (email != null) removed.add(email);
+            }
+            if (!removed.isEmpty()) {
+                cache.markDirty(mailbox, previousBytes);
+                waiters.signal(UserDirectory.normalize(user));
+                List<String> removedIds = new ArrayList<>(removed.size());
+                for (StoredEmail email : removed) removedIds.add(email.getId());
+                indexRemovals(user, removedIds);
             }
         } finally {
             lock.writeLock().unlock();
         }
+        return removed.size();
     }
 
-    private List<Email> loadListFromFile(Path path) throws IOException {
-        if (!Files.exists(path)) return new ArrayList<>();
-        try (Reader reader = Files.newBufferedReader(path)) {
-            Type listType = new TypeToken<ArrayList<Email>>(){}.getType();
-            List<Email> list = gson.fromJson(reader, listType);
-            return list != null ? list : new ArrayList<>();
+    /**
+     * SEARCH: messaggi che contengono tutte le parole della query (o parole che iniziano con esse),
+     * dal più recente, a pagine di pageSize con lo stesso cursore di getPage.
+     */
+    public MailboxPage search(String user, String query, String pageCursor, int pageSize, boolean summary) throws IOException {
+        List<String> terms = new ArrayList<>(SearchTokenizer.tokenize(query, new LinkedHashSet<>()));
+        if (terms.isEmpty()) throw new IllegalArgumentException("Query di ricerca vuota");
+
+        SearchIndex index = searchIndex(user);
+        ReadWriteLock lock = getUserLock(user);
+        lock.readLock().lock();
+        try {
+            return cache.get(user).search(index.search(terms), pageCursor, pageSize, summary, messageStore);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
-    private void saveListToFile(Path path, List<Email> list) throws IOException {
-        try (Writer writer = Files.newBufferedWriter(path)) {
-            gson.toJson(list, writer);
+    /**
+     * Ricostruisce da zero l'indice di ricerca della mailbox. Restituisce il numero di messaggi indicizzati.
+     */
+    public int rebuildSearchIndex(String user) throws IOException {
+        ReadWriteLock lock = getUserLock(user);
+        lock.writeLock().lock();
+        try {
+            searchIndexes.remove(UserDirectory.normalize(user));
+            Files.deleteIfExists(searchIndexPath(user));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        SearchIndex index = searchIndex(user);
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
-    public void markAsRead(String user, String emailId) throws IOException {
+    /**
+     * Indice di ricerca caricato e allineato alla mailbox. Il file si legge con il lock di lettura e i corpi
+     * dei messaggi da indicizzare (mancanti dal file o senza testo) senza lock: con il lock di scrittura
+     * si applica solo il risultato.
+     */
+    private SearchIndex searchIndex(String user) throws IOException {
+        String key = UserDirectory.normalize(user);
         ReadWriteLock lock = getUserLock(user);
+        SearchIndex index;
+        List<StoredEmail> missing;
+        lock.readLock().lock();
+        try {
+            index = searchIndexes.get(key);
+            if (index != null && !index.retryDue()) return index;
+            if (index == null) index = SearchIndex.read(searchIndexPath(key));
+            missing = index.missing(cache.get(user).getEmails());
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Map<String, SearchIndex.Tokens> prepared = new HashMap<>();
+        for (StoredEmail email : missing) {
+            prepared.put(email.getId(), SearchIndex.tokensOf(email, messageStore));
+        }
+
         lock.writeLock().lock();
         try {
-            Path path = Paths.get(DATA_DIR, user + ".json");
-            List<Email> inbox = loadListFromFile(path);
+            SearchIndex current = searchIndexes.get(key);
+            // un'altra ricerca l'ha già caricato nel frattempo
+            if (current != null && current != index) return current;
+            index.reconcile(cache.get(user).getEmails(), prepared, messageStore);
+            searchIndexes.put(key, index);
+            indexAppends.remove(key);
+            return index;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-            boolean updated = false;
-            for (Email e : inbox) {
-                if (e.getId().equals(emailId)) {
-                    e.setRead(true);
-                    updated = true;
-                    break;
-                }
+    private void countIndexAppends(String key, int records) {
+        indexAppends.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(records);
+    }
+
+    /**
+     * Chiamato dal compattatore: riscrive il file dell'indice di una mailbox mai cercata di recente,
+     * a cui le consegne e le cancellazioni continuano ad accodare record. Un indice caricato si riscrive da solo.
+     */
+    private void compactSearchIndex(String user) throws IOException {
+        String key = UserDirectory.normalize(user);
+        AtomicLong appended = indexAppends.get(key);
+        if (appended == null || appended.get() < SearchIndex.REWRITE_MIN_RECORDS) return;
+
+        ReadWriteLock lock = getUserLock(user);
+        // le append avvengono con il lock di scrittura: quello di lettura basta per riscrivere il file
+        lock.readLock().lock();
+        try {
+            if (!searchIndexes.containsKey(key)) SearchIndex.compact(searchIndexPath(key));
+            indexAppends.remove(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Aggiorna l'indice di ricerca dopo una consegna: in memoria se è caricato, altrimenti solo su disco.
+     * Un errore non fa fallire la consegna: l'indice viene riallineato alla prossima apertura.
+     * Il chiamante deve possedere il lock di scrittura dell'utente.
+     */
+    private void indexDeposits(String user, List<DeliveryPipeline.Deposit> deposits) {
+        String key = UserDirectory.normalize(user);
+        Map<String, String[]> added = new LinkedHashMap<>();
+        for (DeliveryPipeline.Deposit deposit : deposits) {
+            added.put(deposit.email().getId(), deposit.searchTokens());
+        }
+        SearchIndex index = searchIndexes.get(key);
+        try {
+            if (index != null) {
+                index.added(added);
+            } else {
+                SearchIndex.appendAdded(searchIndexPath(key), added);
+                countIndexAppends(key, added.size());
             }
+        } catch (IOException e) {
+            System.err.println("Aggiornamento indice di ricerca fallito per " + key + ": " + e.getMessage());
+        }
+    }
 
-            if (updated) {
-                saveListToFile(path, inbox);
+    private void indexRemovals(String user, List<String> emailIds) {
+        String key = UserDirectory.normalize(user);
+        SearchIndex index = searchIndexes.get(key);
+        try {
+            if (index != null) {
+                index.removed(emailIds);
+            } else {
+                SearchIndex.appendRemoved(searchIndexPath(key), emailIds);
+                countIndexAppends(key, emailIds.size());
+            }
+        } catch (IOException e) {
+            System.err.println("Aggiornamento indice di ricerca fallito per " + key + ": " + e.getMessage());
+        }
+    }
+
+    public void markAsRead(String user, String emailId) throws IOException {
+        markAsRead(user, Collections.singletonList(emailId));
+    }
+
+    public int markAsRead(String user, Collection<String> emailIds) throws IOException {
+        ReadWriteLock lock = getUserLock(user);
+        lock.writeLock().lock();
+        try {
+            Mailbox mailbox = cache.get(user);
+            long previousBytes = mailbox.getEstimatedBytes();
+
+            int marked = 0;
+            for (String emailId : emailIds) {
+                if (mailbox.markAsRead(emailId)) marked++;
+            }
+            if (marked > 0) {
+                cache.markDirty(mailbox, previousBytes);
+                waiters.signal(UserDirectory.normalize(user));
             }
+            return marked;
         } finally {
             lock.writeLock().unlock();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+package it.unito.mail.server.model;
+
+import it.unito.mail.common.Email;
+
+import java.util.List;
+
+/**
+ * Una pagina della mailbox in ordine dal più recente, con il cursore per proseguire (null sull'ultima pagina).
+ */
+public class MailboxPage {
+
+    private final List<Email> emails;
+    private final String nextCursor;
+
+    MailboxPage(List<Email> emails, String nextCursor) {
+        this.emails = emails;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Email> getEmails() {
+        return emails;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
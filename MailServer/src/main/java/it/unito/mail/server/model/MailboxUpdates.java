@@ -0,0 +1,66 @@
+package it.unito.mail.server.model;
+
+import it.unito.mail.common.Email;
+
+import java.util.List;
+
+public class MailboxUpdates {
+
+    private final List<Email> emails;
+    private final List<String> deletedIds;
+    private final List<String> readIds;
+    private final long sequence;
+    private final long epoch;
+    private final boolean fullSync;
+    private final String nextPageCursor;
+
+    MailboxUpdates(List<Email> emails, List<String> deletedIds, List<String> readIds, long sequence, long epoch, boolean fullSync) {
+        this(emails, deletedIds, readIds, sequence, epoch, fullSync, null);
+    }
+
+    MailboxUpdates(List<Email> emails, List<String> deletedIds, List<String> readIds, long sequence, long epoch, boolean fullSync,
+                   String nextPageCursor) {
+        this.emails = emails;
+        this.deletedIds = deletedIds;
+        this.readIds = readIds;
+        this.sequence = sequence;
+        this.epoch = epoch;
+        this.fullSync = fullSync;
+        this.nextPageCursor = nextPageCursor;
+    }
+
+    public List<Email> getEmails() {
+        return emails;
+    }
+
+    public List<String> getDeletedIds() {
+        return deletedIds;
+    }
+
+    public List<String> getReadIds() {
+        return readIds;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public boolean isFullSync() {
+        return fullSync;
+    }
+
+    /**
+     * Cursore per la pagina successiva di una sincronizzazione completa paginata; null se non ci sono altre pagine.
+     */
+    public String getNextPageCursor() {
+        return nextPageCursor;
+    }
+
+    public boolean isEmpty() {
+        return emails.isEmpty() && deletedIds.isEmpty() && readIds.isEmpty();
+    }
+}
@@ -0,0 +1,49 @@
+package it.unito.mail.server.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Richieste WAIT_UPDATES in attesa, per mailbox. Ogni modifica alla mailbox completa tutte le attese;
+ * quelle senza modifiche si completano alla scadenza del timeout.
+ * register va chiamato con il lock di lettura della mailbox e signal con quello di scrittura,
+ * così un cambiamento non può sfuggire tra il controllo della sequenza e la registrazione.
+ */
+class MailboxWaiters {
+
+    private final Map<String, List<CompletableFuture<Void>>> waiters = new HashMap<>();
+
+    CompletableFuture<Void> register(String owner, long timeoutMillis) {
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        synchronized (waiters) {
+            waiters.computeIfAbsent(owner, k -> new ArrayList<>()).add(waiter);
+        }
+        waiter.completeOnTimeout(null, timeoutMillis, TimeUnit.MILLISECONDS);
+        waiter.whenComplete((v, e) -> remove(owner, waiter));
+        return waiter;
+    }
+
+    void signal(String owner) {
+        List<CompletableFuture<Void>> ready;
+        synchronized (waiters) {
+            ready = waiters.remove(owner);
+        }
+        if (ready == null) return;
+        for (CompletableFuture<Void> waiter : ready) {
+            waiter.complete(null);
+        }
+    }
+
+    private void remove(String owner, CompletableFuture<Void> waiter) {
+        synchronized (waiters) {
+            List<CompletableFuture<Void>> list = waiters.get(owner);
+            if (list == null) return;
+            list.remove(waiter);
+            if (list.isEmpty()) waiters.remove(owner);
+        }
+    }
+}
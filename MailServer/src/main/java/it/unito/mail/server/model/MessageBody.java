@@ -0,0 +1,24 @@
+package it.unito.mail.server.model;
+
+import java.util.List;
+
+class MessageBody {
+
+    private List<String> recipients;
+    private String text;
+
+    MessageBody() {}
+
+    MessageBody(List<String> recipients, String text) {
+        this.recipients = recipients;
+        this.text = text;
+    }
+
+    List<String> getRecipients() {
+        return recipients;
+    }
+
+    String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,278 @@
+package it.unito.mail.server.model;
+
+import com.google.gson.Gson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archivio dei corpi dei messaggi indirizzati per contenuto (SHA-256).
+ * Ogni corpo è salvato una sola volta con un contatore di riferimenti: il file viene
+ * rimosso quando l'ultima mailbox che lo referenzia cancella il messaggio.
+ * I corpi letti o scritti di recente restano in memoria fino a un limite in byte, così una
+ * sincronizzazione completa non rilegge e rianalizza dal disco i messaggi appena consegnati o letti.
+ * Con la compressione attiva i corpi oltre COMPRESS_MIN_BYTES sono salvati con gzip (.json.gz);
+ * la lettura accetta entrambi i formati, quindi i corpi già presenti restano validi.
+ */
+class MessageStore {
+
+    private static final int LOCK_STRIPES = 64;
+    private static final int COMPRESS_MIN_BYTES = 256;
+
+    private final Path directory;
+    private final Gson gson;
+    // ReentrantLock e non synchronized: le sezioni fanno I/O e con synchronized bloccherebbero il carrier dei thread virtuali
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    private final Map<String, MessageBody> recentBodies = new LinkedHashMap<>(16, 0.75f, true);
+    private final long cacheMaxBytes;
+    private final boolean compress;
+    private long cachedBytes = 0;
+
+    MessageStore(Path directory, Gson gson, long cacheMaxBytes, boolean compress) {
+        this.directory = directory;
+        this.gson = gson;
+        this.cacheMaxBytes = cacheMaxBytes;
+        this.compress = compress;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    String store(MessageBody body, int references) throws IOException {
+        String json = gson.toJson(body);
+        String ref = sha256(json);
+
+        ReentrantLock lock = lockFor(ref);
+        lock.lock();
+        try {
+            int count = readRefCount(ref);
+            if (count == 0 || existingBody(ref) == null) {
+                writeBody(ref, json);
+            }
+            writeRefCount(ref, count + references);
+        } finally {
+            lock.unlock();
+        }
+        synchronized (recentBodies) {
+            cache(ref, body);
+        }
+        return ref;
+    }
+
+    MessageBody load(String ref) throws IOException {
+        synchronized (recentBodies) {
+            MessageBody cached = recentBodies.get(ref);
+            if (cached != null) return cached;
+        }
+
+        MessageBody body = read(ref);
+        synchronized (recentBodies) {
+            cache(ref, body);
+        }
+        return body;
+    }
+
+    /**
+     * Carica più corpi con un solo accesso alla cache per i presenti e uno per inserire quelli letti dal disco.
+     * I corpi illeggibili vengono segnalati e mancano dalla mappa restituita.
+     */
+    Map<String, MessageBody> loadAll(Collection<String> refs) {
+        Map<String, MessageBody> bodies = new HashMap<>(refs.size() * 2);
+        List<String> missing = new ArrayList<>();
+        synchronized (recentBodies) {
+            for (String ref : refs) {
+                MessageBody cached = recentBodies.get(ref);
+                if (cached != null) {
+                    bodies.put(ref, cached);
+                } else {
+                    missing.add(ref);
+                }
+            }
+        }
+        if (missing.isEmpty()) return bodies;
+
+        Map<String, MessageBody> loaded = new HashMap<>(missing.size() * 2);
+        for (String ref : missing) {
+            if (loaded.containsKey(ref)) continue;
+            try {
+                loaded.put(ref, read(ref));
+            } catch (IOException e) {
+                System.err.println("Impossibile leggere il corpo " + ref + ": " + e.getMessage());
+            }
+        }
+        synchronized (recentBodies) {
+            for (Map.Entry<String, MessageBody> entry : loaded.entrySet()) {
+                cache(entry.getKey(), entry.getValue());
+            }
+        }
+        bodies.putAll(loaded);
+        return bodies;
+    }
+
+    void release(String ref) throws IOException {
+        ReentrantLock lock = lockFor(ref);
+        lock.lock();
+        try {
+            int count = readRefCount(ref) - 1;
+            if (count > 0) {
+                writeRefCount(ref, count);
+                return;
+            }
+            Files.deleteIfExists(bodyPath(ref));
+            Files.deleteIfExists(compressedBodyPath(ref));
+            Files.deleteIfExists(refCountPath(ref));
+        } finally {
+            lock.unlock();
+        }
+        synchronized (recentBodies) {
+            MessageBody removed = recentBodies.remove(ref);
+            if (removed != null) cachedBytes -= sizeOf(removed);
+        }
+    }
+
+    /**
+     * Rilascia più corpi senza fermarsi al primo errore: un rilascio fallito lascia solo un file non più referenziato.
+     */
+    void releaseAll(Collection<String> refs) {
+        for (String ref : refs) {
+            try {
+                release(ref);
+            } catch (IOException e) {
+                System.err.println("Impossibile rilasciare il corpo " + ref + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private MessageBody read(String ref) throws IOException {
+        ReentrantLock lock = lockFor(ref);
+        lock.lock();
+        try {
+            Path bodyFile = existingBody(ref);
+            if (bodyFile == null) {
+                throw new IOException("Corpo messaggio mancante: " + ref);
+            }
+            if (bodyFile.getFileName().toString().endsWith(".gz")) {
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(bodyFile))) {
+                    return gson.fromJson(new String(in.readAllBytes(), StandardCharsets.UTF_8), MessageBody.class);
+                }
+            }
+            return gson.fromJson(Files.readString(bodyFile, StandardCharsets.UTF_8), MessageBody.class);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeBody(String ref, String json) throws IOException {
+        byte[] raw = json.getBytes(StandardCharsets.UTF_8);
+        Path plain = bodyPath(ref);
+        Files.createDirectories(plain.getParent());
+        if (!compress || raw.length < COMPRESS_MIN_BYTES) {
+            writeAtomically(plain, raw);
+            return;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(raw.length / 2);
+        try (OutputStream out = new GZIPOutputStream(buffer)) {
+            out.write(raw);
+        }
+        writeAtomically(compressedBodyPath(ref), buffer.toByteArray());
+    }
+
+    private Path existingBody(String ref) {
+        Path compressed = compressedBodyPath(ref);
+        if (Files.exists(compressed)) return compressed;
+        Path plain = bodyPath(ref);
+        return Files.exists(plain) ? plain : null;
+    }
+
+    // da chiamare con il lock di recentBodies
+    private void cache(String ref, MessageBody body) {
+        MessageBody previous = recentBodies.put(ref, body);
+        if (previous != null) cachedBytes -= sizeOf(previous);
+        cachedBytes += sizeOf(body);
+        Iterator<MessageBody> eldest = recentBodies.values().iterator();
+        while (cachedBytes > cacheMaxBytes && eldest.hasNext()) {
+            cachedBytes -= sizeOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private static long sizeOf(MessageBody body) {
+        long size = 64;
+        if (body.getText() != null) size += 2L * body.getText().length();
+        if (body.getRecipients() != null) {
+            for (String recipient : body.getRecipients()) size += 16 + 2L * recipient.length();
+        }
+        return size;
+    }
+
+    private int readRefCount(String ref) throws IOException {
+        Path file = refCountPath(ref);
+        if (!Files.exists(file)) return 0;
+        try {
+            return Integer.parseInt(Files.readString(file, StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Contatore riferimenti corrotto: " + file);
+        }
+    }
+
+    private void writeRefCount(String ref, int count) throws IOException {
+        writeAtomically(refCountPath(ref), Integer.toString(count));
+    }
+
+    private static void writeAtomically(Path file, String content) throws IOException {
+        writeAtomically(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, content);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path bodyPath(String ref) {
+        return directory.resolve(ref.substring(0, 2)).resolve(ref + ".json");
+    }
+
+    private Path compressedBodyPath(String ref) {
+        return directory.resolve(ref.substring(0, 2)).resolve(ref + ".json.gz");
+    }
+
+    private Path refCountPath(String ref) {
+        return directory.resolve(ref.substring(0, 2)).resolve(ref + ".ref");
+    }
+
+    private ReentrantLock lockFor(String ref) {
+        return stripes[Math.floorMod(ref.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static String sha256(String content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
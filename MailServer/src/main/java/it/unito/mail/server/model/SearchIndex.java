@@ -0,0 +1,323 @@
+package it.unito.mail.server.model;
+
+import it.unito.mail.common.Email;
+import it.unito.mail.common.SearchTokenizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Indice invertito di una mailbox per SEARCH: parole di mittente, oggetto e testo di ogni messaggio.
+ * Su disco è un file di testo accanto al log della mailbox, a cui si accodano le modifiche
+ * ("+id\tparola parola..." per un deposito, "?id\tparola..." per un messaggio indicizzato senza testo
+ * perché il corpo non era leggibile, "-id" per una cancellazione); viene riscritto quando
+ * i record superati diventano troppi.
+ * L'indice è un dato derivato: all'apertura viene confrontato con la mailbox e i messaggi mancanti
+ * (per esempio consegnati prima dell'indice o persi in un crash) vengono indicizzati, quelli in più rimossi.
+ * I messaggi senza testo vengono ritentati a ogni apertura e, con l'indice caricato, dopo RETRY_MILLIS.
+ * Il chiamante deve possedere il lock dell'utente: di scrittura per le modifiche, di lettura per le ricerche
+ * e per la lettura del file.
+ */
+class SearchIndex {
+
+    static final long REWRITE_MIN_RECORDS = 1_000;
+    private static final long RETRY_MILLIS = Long.getLong("mail.search.retryMillis", 60_000L);
+
+    /**
+     * Parole di un messaggio; complete è false se il testo non è stato letto.
+     */
+    record Tokens(String[] words, boolean complete) {}
+
+    private final Path path;
+    private final Map<String, Set<String>> postings = new HashMap<>();
+    private final NavigableSet<String> vocabulary = new TreeSet<>();
+    private final Map<String, String[]> tokensById = new HashMap<>();
+    private final Set<String> incomplete = new HashSet<>();
+    private long records = 0;
+    private long retryAfter = 0;
+
+    private SearchIndex(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Legge l'indice dal disco così com'è; va poi allineato alla mailbox con missing e reconcile.
+     */
+    static SearchIndex read(Path path) throws IOException {
+        SearchIndex index = new SearchIndex(path);
+        index.replay();
+        return index;
+    }
+
+    /**
+     * Riscrive il file di un indice non caricato se i record superati sono troppi.
+     */
+    static void compact(Path path) throws IOException {
+        SearchIndex index = read(path);
+        if (index.needsRewrite()) index.rewrite();
+    }
+
+    /**
+     * Messaggi della mailbox da indicizzare: assenti dall'indice o indicizzati senza testo.
+     */
+    List<StoredEmail> missing(Collection<StoredEmail> emails) {
+        List<StoredEmail> missing = new ArrayList<>();
+        for (StoredEmail email : emails) {
+            if (!tokensById.containsKey(email.getId()) || incomplete.contains(email.getId())) missing.add(email);
+        }
+        return missing;
+    }
+
+    /**
+     * True se ci sono messaggi indicizzati senza testo ed è passato RETRY_MILLIS dall'ultimo tentativo.
+     */
+    boolean retryDue() {
+        return !incomplete.isEmpty() && System.currentTimeMillis() >= retryAfter;
+    }
+
+    /**
+     * Allinea l'indice alla mailbox. Le parole dei messaggi mancanti sono di norma già in prepared, lette senza lock;
+     * quelle dei messaggi arrivati nel frattempo si leggono qui dal MessageStore (corpi appena scritti, di solito in cache).
+     * Richiede il lock di scrittura.
+     */
+    void reconcile(Collection<StoredEmail> emails, Map<String, Tokens> prepared, MessageStore store) throws IOException {
+        Set<String> live = new HashSet<>();
+        List<String> changes = new ArrayList<>();
+        for (StoredEmail email : emails) {
+            String id = email.getId();
+            live.add(id);
+            boolean absent = !tokensById.containsKey(id);
+            Tokens tokens = prepared.get(id);
+            if (tokens == null && absent) tokens = tokensOf(email, store);
+            if (tokens != null && (absent || (incomplete.contains(id) && tokens.complete()))) {
+                put(id, tokens.words(), tokens.complete());
+                changes.add(addRecord(id, tokens.words(), tokens.complete()));
+            }
+        }
+        for (String id : new ArrayList<>(tokensById.keySet())) {
+            if (!live.contains(id)) {
+                drop(id);
+                changes.add(removeRecord(id));
+            }
+        }
+        retryAfter = System.currentTimeMillis() + RETRY_MILLIS;
+
+        if (needsRewrite()) {
+            rewrite();
+        } else if (!changes.isEmpty()) {
+            append(path, changes);
+            records += changes.size();
+        }
+    }
+
+    /**
+     * Parole indicizzate di un messaggio alla consegna, con il testo ancora in memoria.
+     */
+    static String[] tokensOf(Email email) {
+        Set<String> tokens = new HashSet<>();
+        SearchTokenizer.tokenize(email.getSender(), tokens);
+        SearchTokenizer.tokenize(email.getSubject(), tokens);
+        SearchTokenizer.tokenize(email.getText(), tokens);
+        return tokens.toArray(new String[0]);
+    }
+
+    /**
+     * Parole indicizzate di un messaggio già archiviato: mittente, oggetto e testo letto dal MessageStore.
+     */
+    static Tokens tokensOf(StoredEmail email, MessageStore store) {
+        Set<String> tokens = new HashSet<>();
+        SearchTokenizer.tokenize(email.getSender(), tokens);
+        SearchTokenizer.tokenize(email.getSubject(), tokens);
+        boolean complete = true;
+        try {
+            SearchTokenizer.tokenize(store.load(email.getBodyRef()).getText(), tokens);
+        } catch (IOException e) {
+            System.err.println("Testo non indicizzato per il messaggio " + email.getId() + ": " + e.getMessage());
+            complete = false;
+        }
+        return new Tokens(tokens.toArray(new String[0]), complete);
+    }
+
+    /**
+     * Accoda al file i depositi senza caricare l'indice in memoria (mailbox mai cercata di recente).
+     */
+    static void appendAdded(Path path, Map<String, String[]> added) throws IOException {
+        List<String> lines = new ArrayList<>(added.size());
+        for (Map.Entry<String, String[]> entry : added.entrySet()) {
+            lines.add(addRecord(entry.getKey(), entry.getValue(), true));
+        }
+        append(path, lines);
+    }
+
+    static void appendRemoved(Path path, Collection<String> ids) throws IOException {
+        List<String> lines = new ArrayList<>(ids.size());
+        for (String id : ids) lines.add(removeRecord(id));
+        append(path, lines);
+    }
+
+    void added(Map<String, String[]> added) throws IOException {
+        for (Map.Entry<String, String[]> entry : added.entrySet()) {
+            put(entry.getKey(), entry.getValue(), true);
+        }
+        appendAdded(path, added);
+        records += added.size();
+    }
+
+    void removed(Collection<String> ids) throws IOException {
+        for (String id : ids) drop(id);
+        appendRemoved(path, ids);
+        records += ids.size();
+        if (needsRewrite()) rewrite();
+    }
+
+    int size() {
+        return tokensById.size();
+    }
+
+    /**
+     * Id dei messaggi in cui ogni termine è il prefisso di una parola. Si parte dal termine con meno
+     * messaggi e si verificano gli altri sulle parole dei candidati.
+     */
+    Set<String> search(Collection<String> terms) {
+        Set<String> hits = new HashSet<>();
+        if (terms.isEmpty()) return hits;
+
+        String seed = null;
+        long seedSize = Long.MAX_VALUE;
+        for (String term : terms) {
+            long size = 0;
+            for (String token : prefixRange(term)) {
+                size += postings.get(token).size();
+                if (size >= seedSize) break;
+            }
+            if (size < seedSize) {
+                seed = term;
+                seedSize = size;
+            }
+        }
+        for (String token : prefixRange(seed)) {
+            for (String id : postings.get(token)) {
+                if (terms.size() == 1 || SearchTokenizer.matchesAll(tokensById.get(id), terms)) hits.add(id);
+            }
+        }
+        return hits;
+    }
+
+    private NavigableSet<String> prefixRange(String prefix) {
+        return vocabulary.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private void put(String id, String[] tokens, boolean complete) {
+        if (tokensById.containsKey(id)) drop(id);
+        tokensById.put(id, tokens);
+        if (!complete) incomplete.add(id);
+        for (String token : tokens) {
+            Set<String> ids = postings.get(token);
+            if (ids == null) {
+                ids = new HashSet<>();
+                postings.put(token, ids);
+                vocabulary.add(token);
+            }
+            ids.add(id);
+        }
+    }
+
+    private void drop(String id) {
+        String[] tokens = tokensById.remove(id);
+        incomplete.remove(id);
+        if (tokens == null) return;
+        for (String token : tokens) {
+            Set<String> ids = postings.get(token);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                postings.remove(token);
+                vocabulary.remove(token);
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(path)) return;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records++;
+                if (line.startsWith("+") || line.startsWith("?")) {
+                    int tab = line.indexOf('\t');
+                    if (tab < 0) continue; // riga troncata da un crash: il messaggio viene reindicizzato
+                    String tokens = line.substring(tab + 1);
+                    put(line.substring(1, tab), tokens.isEmpty() ? new String[0] : tokens.split(" "), line.charAt(0) == '+');
+                } else if (line.startsWith("-")) {
+                    drop(line.substring(1));
+                }
+            }
+        }
+    }
+
+    private boolean needsRewrite() {
+        return records > REWRITE_MIN_RECORDS && records > 2L * tokensById.size();
+    }
+
+    private void rewrite() throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String[]> entry : tokensById.entrySet()) {
+                writer.write(addRecord(entry.getKey(), entry.getValue(), !incomplete.contains(entry.getKey())));
+                writer.write('\n');
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = tokensById.size();
+    }
+
+    private static void append(Path path, List<String> lines) throws IOException {
+        if (lines.isEmpty()) return;
+        Files.createDirectories(path.getParent());
+        boolean partialLine = endsWithPartialLine(path);
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            // una riga lasciata a metà da un crash non deve fondersi con la prima nuova
+            if (partialLine) writer.write('\n');
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static boolean endsWithPartialLine(Path path) throws IOException {
+        if (!Files.exists(path)) return false;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) return false;
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+            return last.get(0) != '\n';
+        }
+    }
+
+    private static String addRecord(String id, String[] tokens, boolean complete) {
+        return (complete ? "+" : "?") + id + "\t" + String.join(" ", tokens);
+    }
+
+    private static String removeRecord(String id) {
+        return "-" + id;
+    }
+}
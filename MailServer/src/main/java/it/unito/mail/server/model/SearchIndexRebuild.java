@@ -0,0 +1,32 @@
+package it.unito.mail.server.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ricostruisce gli indici di ricerca delle mailbox in ServerData (tutte, o solo quelle indicate),
+ * per esempio per i dati scritti prima dell'introduzione di SEARCH o dopo un indice danneggiato.
+ * Va eseguito a server fermo, dalla cartella che contiene ServerData.
+ * Uso: SearchIndexRebuild [utente...]
+ */
+public class SearchIndexRebuild {
+
+    public static void main(String[] args) throws IOException {
+        MailboxManager manager = MailboxManager.getInstance();
+        List<String> users = new ArrayList<>(args.length > 0 ? Arrays.asList(args) : manager.getUsers());
+        Collections.sort(users);
+
+        for (String user : users) {
+            if (!manager.userExists(user)) {
+                System.err.println("Utente sconosciuto: " + user);
+                continue;
+            }
+            long start = System.nanoTime();
+            int indexed = manager.rebuildSearchIndex(user);
+            System.out.printf("%s: %d messaggi indicizzati in %d ms%n", user, indexed, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package it.unito.mail.server.model;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import it.unito.mail.common.Email;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Confronta il formato originale (un file JSON per mailbox con i messaggi completi) con il log e il MessageStore,
+ * in chiaro e compressi: dimensione su disco, tempo di rilettura completa con i corpi, tempo di un deposito
+ * e tempo di lettura dei soli depositi successivi alla riscrittura (coda del log, senza decomprimere i blocchi precedenti).
+ * Uso: StorageBenchmark [messaggi] [recordPerBlocco]
+ */
+public class StorageBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final Type EMAIL_LIST = new TypeToken<List<Email>>() {}.getType();
+
+    public static void main(String[] args) throws IOException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int blockRecords = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+
+        Gson gson = new Gson();
+        List<Email> emails = generate(messages, 42);
+        Path directory = Files.createTempDirectory("mail-bench");
+        try {
+            System.out.printf("%d messaggi, blocchi da %d record%n", messages, blockRecords);
+            System.out.printf("%-10s %12s %12s %12s %12s%n", "formato", "byte", "replay ms", "deposito ms", "coda ms");
+            runJson(gson, directory.resolve("mailbox.json"), emails);
+            runLog("chiaro", gson, directory.resolve("plain"), emails, 0);
+            runLog("deflate", gson, directory.resolve("deflate"), emails, blockRecords);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Formato precedente al log: ogni deposito rilegge e riscrive l'intero file.
+     */
+    private static void runJson(Gson gson, Path file, List<Email> emails) throws IOException {
+        write(gson, file, emails);
+        long size = Files.size(file);
+
+        double replayMillis = best(() -> read(gson, file));
+        Email extra = generate(1, 7).get(0);
+        double appendMillis = best(() -> {
+            List<Email> list = read(gson, file);
+            list.add(extra);
+            write(gson, file, list);
+        });
+        // senza sequenze la coda si ottiene solo rileggendo tutto il file
+        print("json", size, replayMillis, appendMillis, replayMillis);
+    }
+
+    private static void runLog(String name, Gson gson, Path directory, List<Email> emails, int blockRecords) throws IOException {
+        boolean compress = blockRecords > 0;
+        MessageStore store = new MessageStore(directory.resolve("messages"), gson, 0, compress);
+        MailboxLog log = new MailboxLog(directory.resolve("mailbox.log"), gson, blockRecords);
+        List<StoredEmail> stored = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            stored.add(StoredEmail.of(email, store.store(StoredEmail.bodyOf(email), 1)));
+        }
+        log.rewrite(stored.size(), stored);
+        long size = sizeOf(directory);
+
+        // la cache dei corpi è disattivata: ogni rilettura va su disco come dopo un riavvio
+        double replayMillis = best(() -> {
+            List<StoredEmail> loaded = new ArrayList<>(stored.size());
+            log.replay(new MailboxLog.Visitor() {
+                @Override
+                public void onCheckpoint(long sequence) {
+                }
+
+                @Override
+                public void onDeposit(long sequence, StoredEmail email) {
+                    loaded.add(email);
+                }
+
+                @Override
+                public void onDelete(long sequence, String emailId) {
+                }
+
+                @Override
+                public void onRead(long sequence, String emailId) {
+                }
+            });
+            Mailbox.hydrate(loaded, store);
+        });
+
+        Email extra = generate(1, 7).get(0);
+        long[] sequence = {stored.size()};
+        double appendMillis = best(() -> {
+            StoredEmail email = StoredEmail.of(extra, store.store(StoredEmail.bodyOf(extra), 1));
+            List<MailboxChange> change = Collections.singletonList(
+                    new MailboxChange(++sequence[0], MailboxChange.Type.DEPOSIT, email.getId()));
+            Map<String, StoredEmail> byId = Collections.singletonMap(email.getId(), email);
+            log.appendAll(change, byId, false);
+        });
+        double tailMillis = best(() -> Mailbox.changesInLog(log, stored.size(), 0, false, store));
+        print(name, size, replayMillis, appendMillis, tailMillis);
+    }
+
+    private static void print(String name, long size, double replayMillis, double appendMillis, double tailMillis) {
+        System.out.printf("%-10s %12d %12.2f %12.3f %12.3f%n", name, size, replayMillis, appendMillis, tailMillis);
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private static double best(Task task) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1_000_000.0;
+    }
+
+    private static List<Email> read(Gson gson, Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file)) {
+            return gson.fromJson(reader, EMAIL_LIST);
+        }
+    }
+
+    private static void write(Gson gson, Path file, List<Email> emails) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            gson.toJson(emails, EMAIL_LIST, writer);
+        }
+    }
+
+    private static long sizeOf(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            long size = 0;
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                size += Files.size(file);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Messaggi con testi di lunghezza variabile (da poche righe a qualche kilobyte) composti da parole comuni.
+     */
+    private static List<Email> generate(int count, long seed) {
+        Random random = new Random(seed);
+        String[] words = {"riunione", "progetto", "consegna", "report", "lezione", "esame", "server", "client",
+                "domani", "allegato", "grazie", "saluti", "verifica", "modifica", "settimana", "orario", "aula",
+                "gruppo", "codice", "errore", "versione", "prova", "risultato", "documento", "della", "per", "il", "con"};
+        List<Email> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String subject = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " " + i;
+            int length = 200 + random.nextInt(3000);
+            StringBuilder text = new StringBuilder(length + 16);
+            while (text.length() < length) {
+                text.append(words[random.nextInt(words.length)]);
+                text.append(random.nextInt(12) == 0 ? ".\n" : " ");
+            }
+            emails.add(new Email("user" + (1 + random.nextInt(3)) + "@mail.com",
+                    Collections.singletonList("user1@mail.com"), subject, text.toString()));
+        }
+        return emails;
+    }
+}
@@ -0,0 +1,129 @@
+package it.unito.mail.server.model;
+
+import it.unito.mail.common.Email;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Voce di una mailbox: intestazione e stato di lettura, con riferimento al corpo condiviso nel MessageStore.
+ * I campi recipients/text sono valorizzati solo nei record scritti prima dell'archiviazione a istanza singola.
+ */
+class StoredEmail {
+
+    private String id;
+    private String sender;
+    private String subject;
+    private Date timestamp;
+    private boolean read;
+    private String bodyRef;
+    private Integer size;
+
+    private List<String> recipients;
+    private String text;
+
+    StoredEmail() {}
+
+    static StoredEmail of(Email email, String bodyRef) {
+        StoredEmail stored = new StoredEmail();
+        stored.id = email.getId();
+        stored.sender = email.getSender();
+        stored.subject = email.getSubject();
+        stored.timestamp = email.getTimestamp();
+        stored.read = email.isRead();
+        stored.bodyRef = bodyRef;
+        stored.size = textSize(email.getText());
+        return stored;
+    }
+
+    static MessageBody bodyOf(Email email) {
+        List<String> recipients = email.getRecipients() != null ? new ArrayList<>(email.getRecipients()) : null;
+        return new MessageBody(recipients, email.getText());
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getSender() {
+        return sender;
+    }
+
+    String getSubject() {
+        return subject;
+    }
+
+    Date getTimestamp() {
+        return timestamp;
+    }
+
+    boolean isRead() {
+        return read;
+    }
+
+    void setRead(boolean read) {
+        this.read = read;
+    }
+
+    /**
+     * Dimensione del testo in byte; null per i record scritti prima che venisse registrata.
+     */
+    Integer getSize() {
+        return size;
+    }
+
+    void setSize(Integer size) {
+        this.size = size;
+    }
+
+    static int textSize(String text) {
+        return text != null ? text.getBytes(StandardCharsets.UTF_8).length : 0;
+    }
+
+    String getBodyRef() {
+        return bodyRef;
+    }
+
+    boolean hasInlineBody() {
+        return bodyRef == null;
+    }
+
+    MessageBody takeInlineBody() {
+        MessageBody body = new MessageBody(recipients, text);
+        recipients = null;
+        text = null;
+        return body;
+    }
+
+    void setBodyRef(String bodyRef) {
+        this.bodyRef = bodyRef;
+    }
+
+    /**
+     * Solo intestazione, senza destinatari né testo.
+     */
+    Email toSummary() {
+        Email email = new Email();
+        email.setId(id);
+        email.setSender(sender);
+        email.setSubject(subject);
+        email.setTimestamp(timestamp);
+        email.setRead(read);
+        email.setSize(size != null ? size : 0);
+        return email;
+    }
+
+    Email toEmail(MessageBody body) {
+        Email email = new Email();
+        email.setId(id);
+        email.setSender(sender);
+        email.setSubject(subject);
+        email.setTimestamp(timestamp);
+        email.setRead(read);
+        email.setRecipients(body.getRecipients() != null ? new ArrayList<>(body.getRecipients()) : null);
+        email.setText(body.getText());
+        return email;
+    }
+}
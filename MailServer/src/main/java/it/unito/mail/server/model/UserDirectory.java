@@ -0,0 +1,76 @@
+package it.unito.mail.server.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Elenco degli account registrati, letto da un file di testo (un indirizzo per riga, '#' per i commenti)
+ * e indicizzato in memoria per indirizzo normalizzato.
+ */
+class UserDirectory {
+
+    private final Set<String> users;
+
+    private UserDirectory(Set<String> users) {
+        this.users = users;
+    }
+
+    static UserDirectory load(Path file, String[] defaultUsers) throws IOException {
+        if (!Files.exists(file)) {
+            Files.createDirectories(file.getParent());
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                for (String user : defaultUsers) {
+                    writer.write(user);
+                    writer.write(System.lineSeparator());
+                }
+            }
+            System.out.println("Creato elenco utenti: " + file);
+        }
+
+        Set<String> users = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String user = normalize(line);
+                if (!user.isEmpty() && !user.startsWith("#")) {
+                    users.add(user);
+                }
+            }
+        }
+        return new UserDirectory(users);
+    }
+
+    boolean contains(String emailAddress) {
+        return emailAddress != null && users.contains(normalize(emailAddress));
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    Set<String> getUsers() {
+        return Collections.unmodifiableSet(users);
+    }
+
+    static String normalize(String emailAddress) {
+        return emailAddress.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Sottocartella (due cifre esadecimali) in cui risiede la mailbox dell'utente.
+     */
+    static String shardOf(String normalizedAddress) {
+        CRC32 crc = new CRC32();
+        crc.update(normalizedAddress.getBytes(StandardCharsets.UTF_8));
+        return String.format("%02x", crc.getValue() & 0xFF);
+    }
+}
@@ -1,151 +1,69 @@
 package it.unito.mail.server.net;
 
 import com.google.gson.Gson;
-import it.unito.mail.common.Email;
+import com.google.gson.JsonParseException;
+import it.unito.mail.common.BinaryCodec;
 import it.unito.mail.common.Packet;
+import it.unito.mail.common.PacketCompression;
 import it.unito.mail.server.controller.ServerController;
-import it.unito.mail.server.model.MailboxManager;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.net.SocketTimeoutException;
 
 public class ClientHandler implements Runnable {
 
+    static final int IDLE_TIMEOUT_MILLIS = Integer.getInteger("mail.server.idleMillis", 30_000);
+    static final int MAX_REQUEST_BYTES = Integer.getInteger("mail.server.maxRequestBytes", 16 * 1024 * 1024);
+    static final int COMPRESS_THRESHOLD_BYTES = Integer.getInteger("mail.server.compressThreshold", 8 * 1024);
+    private static final int REJECT_READ_TIMEOUT_MILLIS = 2_000;
+
     private Socket socket;
     private ServerController controller;
-    private MailboxManager model;
+    private RequestProcessor processor;
     private Gson gson;
+    private boolean rejecting = false;
 
     public ClientHandler(Socket socket, ServerController controller) {
+        this(socket, controller, new RequestProcessor(controller));
+    }
+
+    public ClientHandler(Socket socket, ServerController controller, RequestProcessor processor) {
         this.socket = socket;
         this.controller = controller;
-        this.model = MailboxManager.getInstance();
+        this.processor = processor;
         this.gson = new Gson();
     }
 
+    /**
+     * Handler per una connessione che il server non può servire: legge la prima richiesta e risponde BUSY
+     * (con il suo requestId e nella codifica scelta dal client), poi chiude.
+     */
+    public static ClientHandler rejecting(Socket socket, ServerController controller) {
+        ClientHandler handler = new ClientHandler(socket, controller, null);
+        handler.rejecting = true;
+        return handler;
+    }
+
     @Override
     public void run() {
-        try (
-                InputStreamReader isr = new InputStreamReader(socket.getInputStream());
-                BufferedReader in = new BufferedReader(isr);
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
-        ) {
-
-            String jsonRequest = in.readLine();
-            if (jsonRequest == null) return;
-
-            Packet request = gson.fromJson(jsonRequest, Packet.class);
-            Packet response = new Packet();
-
-            String cmd = request.getCommand();
-            String user = request.getUserEmailAddress();
-
-            if (cmd != null) {
-                controller.appendLog("Richiesta da " + socket.getInetAddress() + ": " + cmd);
+        try (BufferedInputStream input = new BufferedInputStream(socket.getInputStream())) {
+            if (rejecting) socket.setSoTimeout(REJECT_READ_TIMEOUT_MILLIS);
+            input.mark(1);
+            int first = input.read();
+            input.reset();
+
+            if (first == BinaryCodec.PREAMBLE[0]) {
+                if (!BinaryCodec.isPreamble(input.readNBytes(BinaryCodec.PREAMBLE.length))) {
+                    throw new IOException("Preambolo binario non valido");
+                }
+                serveBinary(input);
+            } else if (first >= 0) {
+                serveJson(input);
             }
 
-            switch (cmd) {
-                case "SEND_EMAIL":
-                    Email email = request.getEmail();
-
-                    if (email != null && model.userExists(email.getSender())) {
-                        List<String> invalidRecipients = new ArrayList<>();
-                        List<String> validRecipients = new ArrayList<>();
-
-                        for (String recipient : email.getRecipients()) {
-                            if (model.userExists(recipient)) {
-                                validRecipients.add(recipient);
-                            } else {
-                                invalidRecipients.add(recipient);
-                            }
-                        }
-
-                        for (String recipient : validRecipients) {
-                            try {
-                                model.depositEmail(recipient, email);
-                            } catch (IOException e) {
-                                controller.appendLog("Errore scrittura su file per: " + recipient);
-                                invalidRecipients.add(recipient + " (Errore IO)");
-                            }
-                        }
-
-                        if (invalidRecipients.isEmpty()) {
-                            response.setOutcomeCode("OK");
-                            response.setOutcomeMessage("Email inviata con successo.");
-                            controller.appendLog("Email inviata con successo da " + email.getSender());
-                        } else {
-                            if (validRecipients.isEmpty()) {
-                                response.setOutcomeCode("ERROR");
-                                response.setOutcomeMessage("Invio fallito. Nessun destinatario valido trovato.");
-                                controller.appendLog("Invio fallito da " + email.getSender() + ": nessun destinatario valido.");
-                            } else {
-                                response.setOutcomeCode("PARTIAL_ERROR");
-                                String msg = "Email inviata a " + validRecipients.size() + " destinatari.\n" +
-                                        "User inesistenti (non consegnata): " + String.join(", ", invalidRecipients);
-                                response.setOutcomeMessage(msg);
-
-                                controller.appendLog("Invio parziale da " + email.getSender() + ". Validi: " +
-                                        validRecipients.size() + ", Errati: " + invalidRecipients);
-                            }
-                        }
-                    } else {
-                        response.setOutcomeCode("ERROR");
-                        response.setOutcomeMessage("Mittente non riconosciuto o dati mancanti.");
-                    }
-                    break;
-
-                case "GET_UPDATES":
-                    if (user != null && model.userExists(user)) {
-                        java.util.Date clientLastDate = request.getLastUpdateDate();
-
-                        List<Email> updates = model.getInbox(user, clientLastDate);
-
-                        response.setEmailList(updates);
-                        response.setOutcomeCode("OK");
-
-                        if (!updates.isEmpty()) {
-                            controller.appendLog("Inviati " + updates.size() + " nuovi messaggi a " + user);
-                        }
-                    } else {
-                        response.setOutcomeCode("ERROR");
-                        response.setOutcomeMessage("Utente sconosciuto: " + user);
-                    }
-                    break;
-
-                case "DELETE_EMAIL":
-                    Email emailToDelete = request.getEmail();
-                    if (emailToDelete != null && model.userExists(user)) {
-                        model.deleteEmail(user, emailToDelete.getId());
-                        response.setOutcomeCode("OK");
-                        controller.appendLog("Email " + emailToDelete.getId() + " cancellata da " + user);
-                    } else {
-                        response.setOutcomeCode("ERROR");
-                        response.setOutcomeMessage("Errore cancellazione: dati non validi.");
-                    }
-                    break;
-
-                case "MARK_AS_READ":
-                    Email emailToMark = request.getEmail();
-                    if (emailToMark != null && model.userExists(user)) {
-                        model.markAsRead(user, emailToMark.getId());
-                        response.setOutcomeCode("OK");
-                        controller.appendLog("Email " + emailToMark.getId() + " segnata come letta da " + user);
-                    } else {
-                        response.setOutcomeCode("ERROR");
-                        response.setOutcomeMessage("Errore aggiornamento stato lettura.");
-                    }
-                    break;
-
-                default:
-                    response.setOutcomeCode("ERROR");
-                    response.setOutcomeMessage("Comando sconosciuto: " + cmd);
-            }
-
-            String jsonResponse = gson.toJson(response);
-            out.println(jsonResponse);
-
+        } catch (SocketTimeoutException e) {
+            // connessione persistente rimasta inattiva oltre il timeout
         } catch (IOException e) {
             if (controller != null) {
                 controller.appendLog("Errore connessione client: " + e.getMessage());
@@ -158,4 +76,67 @@ public class ClientHandler implements Runnable {
             }
         }
     }
-}
\ No newline at end of file
+
+    private void serveJson(InputStream input) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+        String jsonRequest;
+        while ((jsonRequest = in.readLine()) != null) {
+            Packet request = parse(gson, jsonRequest);
+            if (request == null) {
+                out.println(gson.toJson(RequestProcessor.invalid("Richiesta vuota o non valida.")));
+                break;
+            }
+            Packet response = respond(request);
+
+            String jsonResponse = gson.toJson(response);
+            out.println(PacketCompression.encodeLine(jsonResponse, compressAbove(request)));
+
+            if (!response.isKeepAlive()) break;
+            socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+        }
+    }
+
+    private void serveBinary(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        out.write(BinaryCodec.PREAMBLE);
+        out.flush();
+
+        Packet request;
+        while ((request = BinaryCodec.readFrame(in, MAX_REQUEST_BYTES)) != null) {
+            Packet response = respond(request);
+            BinaryCodec.writeFrame(out, response, compressAbove(request));
+
+            if (!response.isKeepAlive()) break;
+            socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+        }
+    }
+
+    private Packet respond(Packet request) throws IOException {
+        if (!rejecting) return processor.process(request, socket.getInetAddress());
+        Packet busy = RequestProcessor.overloaded(request);
+        busy.setKeepAlive(false);
+        return busy;
+    }
+
+    /**
+     * Restituisce null per una riga vuota o che non è un Packet JSON.
+     */
+    static Packet parse(Gson gson, String json) {
+        if (json.isBlank()) return null;
+        try {
+            return gson.fromJson(json, Packet.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Soglia oltre la quale comprimere la risposta: solo se il client ha dichiarato di accettare gzip.
+     */
+    static int compressAbove(Packet request) {
+        return PacketCompression.accepts(request) ? COMPRESS_THRESHOLD_BYTES : PacketCompression.NEVER;
+    }
+}
@@ -0,0 +1,472 @@
+package it.unito.mail.server.net;
+
+import com.google.gson.Gson;
+import it.unito.mail.common.BinaryCodec;
+import it.unito.mail.common.Packet;
+import it.unito.mail.common.PacketCompression;
+import it.unito.mail.server.controller.ServerController;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Front end non bloccante: pochi thread di I/O, ciascuno con il proprio Selector, leggono le richieste
+ * (una riga JSON terminata da '\n') e le passano a un pool di worker limitato.
+ * Il protocollo è lo stesso di ClientHandler: una richiesta e una risposta per connessione, a meno che
+ * la richiesta non chieda keepAlive. In quel caso la connessione resta aperta e il client può inviare più
+ * richieste in pipeline: vengono eseguite in ordine e le risposte riportano il requestId della richiesta.
+ * Se i primi byte sono il preambolo di BinaryCodec la connessione usa i frame binari al posto del JSON.
+ * Le richieste WAIT_UPDATES in attesa non occupano un worker: la risposta viene preparata quando la mailbox cambia.
+ */
+public class NioServer {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PIPELINED = 64;
+    private static final long SWEEP_MILLIS = 1000;
+
+    private final int port;
+    private final ServerController controller;
+    private final RequestProcessor processor;
+    private final Gson gson = new Gson();
+    private final int maxRequestBytes;
+    private final Reactor[] reactors;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+
+    public NioServer(int port, ServerController controller, int ioThreads, int workerThreads, int workerQueue, int maxRequestBytes) throws IOException {
+        this.port = port;
+        this.controller = controller;
+        this.processor = new RequestProcessor(controller);
+        this.maxRequestBytes = maxRequestBytes;
+
+        this.reactors = new Reactor[Math.max(1, ioThreads)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i);
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, workerQueue)), r -> {
+            Thread t = new Thread(r, "mail-worker-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        reactors[0].execute(() -> {
+            try {
+                server.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                controller.appendLog("Errore Server: " + e.getMessage());
+            }
+        });
+
+        for (Reactor reactor : reactors) {
+            Thread t = new Thread(reactor, "nio-io-" + reactor.index);
+            t.setDaemon(true);
+            t.start();
+        }
+        controller.appendLog("Server NIO avviato sulla porta " + port + " (" + reactors.length
+                + " thread I/O, " + workers.getMaximumPoolSize() + " worker)");
+    }
+
+    private class Reactor implements Runnable {
+
+        private final int index;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private long lastSweep = System.currentTimeMillis();
+
+        Reactor(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(SWEEP_MILLIS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) continue;
+
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) connection.read(readBuffer);
+                            if (key.isValid() && key.isWritable()) connection.write();
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                    closeIdleConnections();
+                } catch (IOException e) {
+                    controller.appendLog("Errore Server: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < SWEEP_MILLIS) return;
+            lastSweep = now;
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection && connection.isIdleSince(now - ClientHandler.IDLE_TIMEOUT_MILLIS)) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void accept(ServerSocketChannel server) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                Reactor target = reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+                SocketChannel accepted = channel;
+                target.execute(() -> target.register(accepted));
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private class Connection {
+
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final InetAddress remoteAddress;
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private final Queue<ByteBuffer> pending = new ArrayDeque<>();
+        private SelectionKey key;
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        private boolean modeKnown = false;
+        private boolean binary = false;
+        private boolean preambleRead = false;
+        private int frameLength = -1;
+        private boolean processing = false;
+        private boolean inputClosed = false;
+        private boolean closeAfterWrite = false;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(Reactor reactor, SocketChannel channel) throws IOException {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        }
+
+        boolean isIdleSince(long threshold) {
+            return !processing && pending.isEmpty() && outbound.isEmpty() && lastActivity < threshold;
+        }
+
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer);
+            lastActivity = System.currentTimeMillis();
+            if (n < 0) {
+                if (!binary && lineLength > 0) completeLine();
+                inputClosed = true;
+                updateInterest();
+                dispatchNext();
+                if (!processing && pending.isEmpty() && outbound.isEmpty()) close();
+                return;
+            }
+
+            buffer.flip();
+            if (!modeKnown && buffer.hasRemaining()) {
+                binary = buffer.get(buffer.position()) == BinaryCodec.PREAMBLE[0];
+                modeKnown = true;
+            }
+            boolean open = binary ? readFrames(buffer) : readLines(buffer);
+            if (!open) return;
+
+            updateInterest();
+            dispatchNext();
+        }
+
+        private boolean readLines(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    completeLine();
+                    continue;
+                }
+                if (lineLength == maxRequestBytes) {
+                    rejectOversized();
+                    return false;
+                }
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, Math.min(maxRequestBytes, line.length * 2));
+                }
+                line[lineLength++] = b;
+            }
+            return true;
+        }
+
+        private void completeLine() {
+            int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+            pending.add(ByteBuffer.wrap(Arrays.copyOf(line, length)));
+            resetLine();
+        }
+
+        /**
+         * Legge il preambolo e poi frame [int lunghezza][payload], accumulandoli nello stesso buffer delle righe.
+         */
+        private boolean readFrames(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                int needed = !preambleRead ? BinaryCodec.PREAMBLE.length : frameLength < 0 ? 4 : 4 + frameLength;
+                if (needed > line.length) {
+                    line = Arrays.copyOf(line, Math.max(needed, Math.min(maxRequestBytes + 4, line.length * 2)));
+                }
+                int n = Math.min(buffer.remaining(), needed - lineLength);
+                buffer.get(line, lineLength, n);
+                lineLength += n;
+                if (lineLength < needed) break;
+
+                if (!preambleRead) {
+                    if (!BinaryCodec.isPreamble(Arrays.copyOf(line, lineLength))) {
+                        close();
+                        return false;
+                    }
+                    preambleRead = true;
+                    outbound.add(ByteBuffer.wrap(BinaryCodec.PREAMBLE));
+                    lineLength = 0;
+                } else if (frameLength < 0) {
+                    frameLength = ByteBuffer.wrap(line, 0, 4).getInt();
+                    if (frameLength < 0 || frameLength > maxRequestBytes) {
+                        rejectOversized();
+                        return false;
+                    }
+                } else {
+                    pending.add(ByteBuffer.wrap(Arrays.copyOfRange(line, 4, needed)));
+                    frameLength = -1;
+                    resetLine();
+                }
+            }
+            return true;
+        }
+
+        private void resetLine() {
+            lineLength = 0;
+            if (line.length > READ_BUFFER_SIZE) line = new byte[256];
+        }
+
+        private void rejectOversized() {
+            controller.appendLog("Richiesta troppo grande da " + remoteAddress + ", connessione chiusa");
+            close();
+        }
+
+        private void dispatchNext() {
+            if (processing || closeAfterWrite || pending.isEmpty()) return;
+            ByteBuffer payload = pending.poll();
+            processing = true;
+
+            // il tetto di richieste in corso vale da quando il lavoro viene accodato, non da quando un worker lo esegue
+            if (!processor.admit()) {
+                reject(payload);
+                return;
+            }
+            try {
+                workers.execute(() -> handle(payload));
+            } catch (RejectedExecutionException e) {
+                processor.release();
+                reject(payload);
+            }
+        }
+
+        /**
+         * Risponde BUSY senza eseguire la richiesta: viene decodificata qui solo per riportarne il requestId.
+         */
+        private void reject(ByteBuffer payload) {
+            Packet request = decode(payload);
+            Packet response = request != null ? RequestProcessor.overloaded(request) : RequestProcessor.invalid("Richiesta vuota o non valida.");
+            complete(encode(response), response.isKeepAlive());
+        }
+
+        /**
+         * Restituisce null per una richiesta vuota o illeggibile.
+         */
+        private Packet decode(ByteBuffer payload) {
+            if (binary) {
+                try {
+                    return BinaryCodec.decode(payload);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+            return ClientHandler.parse(gson, StandardCharsets.UTF_8.decode(payload).toString());
+        }
+
+        // eseguito da un worker con un posto già prenotato da dispatchNext
+        private void handle(ByteBuffer payload) {
+            try {
+                Packet request = decode(payload);
+                CompletableFuture<Void> ready = processor.awaitReady(request);
+                if (ready != null && !ready.isDone()) {
+                    // durante l'attesa la richiesta non occupa né un worker né un posto tra quelle in corso
+                    ready.whenComplete((v, e) -> resubmit(request));
+                    return;
+                }
+                respond(request);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            } finally {
+                processor.release();
+            }
+        }
+
+        private void resubmit(Packet request) {
+            if (!processor.admit()) {
+                rejectLater(request);
+                return;
+            }
+            try {
+                workers.execute(() -> {
+                    try {
+                        respond(request);
+                    } finally {
+                        processor.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                processor.release();
+                rejectLater(request);
+            }
+        }
+
+        private void rejectLater(Packet request) {
+            Packet busy = RequestProcessor.overloaded(request);
+            reactor.execute(() -> complete(encode(busy), busy.isKeepAlive()));
+        }
+
+        private void respond(Packet request) {
+            try {
+                Packet response = processor.respondAdmitted(request, remoteAddress);
+                ByteBuffer encoded = encode(response, ClientHandler.compressAbove(request));
+                reactor.execute(() -> complete(encoded, response.isKeepAlive()));
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Exception e) {
+            controller.appendLog("Errore connessione client: " + e.getMessage());
+            e.printStackTrace();
+            reactor.execute(this::close);
+        }
+
+        private ByteBuffer encode(Packet response) {
+            return encode(response, PacketCompression.NEVER);
+        }
+
+        private ByteBuffer encode(Packet response, int compressAbove) {
+            return binary
+                    ? BinaryCodec.encodeFrame(response, compressAbove)
+                    : StandardCharsets.UTF_8.encode(PacketCompression.encodeLine(gson.toJson(response), compressAbove) + "\n");
+        }
+
+        private void complete(ByteBuffer response, boolean keepAlive) {
+            processing = false;
+            if (!channel.isOpen()) return;
+
+            if (!keepAlive || (inputClosed && pending.isEmpty())) {
+                closeAfterWrite = true;
+                pending.clear();
+            }
+            outbound.add(response);
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            dispatchNext();
+        }
+
+        void write() throws IOException {
+            while (!outbound.isEmpty()) {
+                ByteBuffer buffer = outbound.peek();
+                channel.write(buffer);
+                lastActivity = System.currentTimeMillis();
+                if (buffer.hasRemaining()) {
+                    updateInterest();
+                    return;
+                }
+                outbound.poll();
+            }
+            if (closeAfterWrite) {
+                close();
+            } else {
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) return;
+            int ops = 0;
+            if (!inputClosed && !closeAfterWrite && pending.size() < MAX_PIPELINED) ops |= SelectionKey.OP_READ;
+            if (!outbound.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
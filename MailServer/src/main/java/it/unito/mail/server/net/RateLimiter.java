@@ -0,0 +1,80 @@
+package it.unito.mail.server.net;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Token bucket per chiave (utente o indirizzo): ogni richiesta consuma un gettone, i gettoni si
+ * ricaricano a ratePerSecond fino a burst. Con ratePerSecond &lt;= 0 il limite è disattivato.
+ * I bucket inattivi da abbastanza tempo da essere di nuovo pieni vengono rimossi periodicamente.
+ */
+class RateLimiter {
+
+    private static final int SWEEP_EVERY = 4096;
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final long refillNanos;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger untilSweep = new AtomicInteger(SWEEP_EVERY);
+
+    RateLimiter(double ratePerSecond, int burst) {
+        this.tokensPerNano = ratePerSecond / 1_000_000_000.0;
+        this.burst = Math.max(1, burst);
+        this.refillNanos = ratePerSecond > 0 ? (long) (this.burst / tokensPerNano) : 0;
+    }
+
+    boolean isEnabled() {
+        return tokensPerNano > 0;
+    }
+
+    /**
+     * Consuma un gettone; restituisce 0 se la richiesta è ammessa, altrimenti i millisecondi
+     * dopo i quali ci sarà di nuovo un gettone disponibile.
+     */
+    long acquire(String key) {
+        if (!isEnabled() || key == null) return 0;
+        if (untilSweep.decrementAndGet() <= 0) sweep();
+        return buckets.computeIfAbsent(key, k -> new Bucket(burst)).take(true);
+    }
+
+    /**
+     * Come acquire, ma senza consumare il gettone.
+     */
+    boolean wouldAdmit(String key) {
+        if (!isEnabled() || key == null) return true;
+        Bucket bucket = buckets.get(key);
+        return bucket == null || bucket.take(false) == 0;
+    }
+
+    private void sweep() {
+        untilSweep.set(SWEEP_EVERY);
+        long now = System.nanoTime();
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastRefill > refillNanos) it.remove();
+        }
+    }
+
+    private class Bucket {
+
+        private double tokens;
+        private volatile long lastRefill = System.nanoTime();
+
+        Bucket(double tokens) {
+            this.tokens = tokens;
+        }
+
+        synchronized long take(boolean consume) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens >= 1) {
+                if (consume) tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano / 1_000_000));
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package it.unito.mail.server.net;
+
+import it.unito.mail.common.Email;
+import it.unito.mail.common.Packet;
+import it.unito.mail.server.controller.ServerController;
+import it.unito.mail.server.model.MailboxManager;
+import it.unito.mail.server.model.MailboxPage;
+import it.unito.mail.server.model.MailboxUpdates;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Elaborazione dei comandi del protocollo, indipendente dal modo in cui la richiesta è stata letta dalla rete.
+ */
+public class RequestProcessor {
+
+    private static final long LONG_POLL_DEFAULT_MILLIS = Long.getLong("mail.server.longPollMillis", 20_000L);
+    private static final long LONG_POLL_MAX_MILLIS = Long.getLong("mail.server.longPollMaxMillis", 25_000L);
+    private static final int MAX_PAGE_SIZE = Integer.getInteger("mail.server.maxPageSize", 500);
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("mail.server.maxInFlight", 256);
+    private static final long BUSY_RETRY_MILLIS = Long.getLong("mail.server.busyRetryMillis", 500L);
+    private static final double USER_RATE = Double.parseDouble(System.getProperty("mail.server.userRate", "20"));
+    private static final int USER_BURST = Integer.getInteger("mail.server.userBurst", 40);
+    private static final double ADDRESS_RATE = Double.parseDouble(System.getProperty("mail.server.addressRate", "200"));
+    private static final int ADDRESS_BURST = Integer.getInteger("mail.server.addressBurst", 400);
+
+    private final ServerController controller;
+    private final MailboxManager model;
+    private final RateLimiter userLimiter = new RateLimiter(USER_RATE, USER_BURST);
+    private final RateLimiter addressLimiter = new RateLimiter(ADDRESS_RATE, ADDRESS_BURST);
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * I limiti di frequenza e il tetto di richieste in corso valgono per istanza:
+     * ogni front end ne usa una sola, condivisa da tutte le connessioni.
+     */
+    public RequestProcessor(ServerController controller) {
+        this.controller = controller;
+        this.model = MailboxManager.getInstance();
+    }
+
+    public Packet process(Packet request, InetAddress remoteAddress) throws IOException {
+        CompletableFuture<Void> ready = awaitReady(request);
+        if (ready != null) {
+            try {
+                ready.join();
+            } catch (CompletionException e) {
+                throw new IOException("Attesa aggiornamenti fallita", e.getCause());
+            }
+        }
+        return respond(request, remoteAddress);
+    }
+
+    /**
+     * Per WAIT_UPDATES restituisce il future che si completa quando la mailbox cambia o scade l'attesa;
+     * null per gli altri comandi, che possono essere eseguiti subito con respond.
+     */
+    public CompletableFuture<Void> awaitReady(Packet request) throws IOException {
+        if (request == null) return null;
+        String user = request.getUserEmailAddress();
+        if (!"WAIT_UPDATES".equals(request.getCommand()) || user == null || !model.userExists(user)) {
+            return null;
+        }
+        // una richiesta che verrà rifiutata per frequenza non deve occupare un posto tra le attese
+        if (!userLimiter.wouldAdmit(rateKey(request))) {
+            return null;
+        }
+        long wait = request.getWaitMillis() != null ? request.getWaitMillis() : LONG_POLL_DEFAULT_MILLIS;
+        return model.awaitChanges(user, request.getSequence(), request.getEpoch(), Math.max(0, Math.min(wait, LONG_POLL_MAX_MILLIS)));
+    }
+
+    public Packet respond(Packet request, InetAddress remoteAddress) throws IOException {
+        if (request == null) {
+            return invalid("Richiesta vuota o non valida.");
+        }
+        if (!admit()) {
+            return overloaded(request);
+        }
+        try {
+            return respondAdmitted(request, remoteAddress);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Come respond, per un front end che ha già prenotato il posto con admit (per esempio al momento di accodare la richiesta).
+     */
+    public Packet respondAdmitted(Packet request, InetAddress remoteAddress) throws IOException {
+        if (request == null) {
+            return invalid("Richiesta vuota o non valida.");
+        }
+        long retryAfter = Math.max(userLimiter.acquire(rateKey(request)),
+                remoteAddress != null ? addressLimiter.acquire(remoteAddress.getHostAddress()) : 0);
+        if (retryAfter > 0) {
+            return busy(request, "Troppe richieste, riprovare più tardi.", retryAfter);
+        }
+        return execute(request, remoteAddress);
+    }
+
+    /**
+     * Prenota un posto tra le richieste in corso; false se il tetto è raggiunto.
+     * Ogni prenotazione riuscita va chiusa con release.
+     */
+    public boolean admit() {
+        if (inFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Risposta BUSY: la richiesta non è stata eseguita e può essere ripetuta dopo retryAfterMillis.
+     */
+    public static Packet busy(Packet request, String message, long retryAfterMillis) {
+        Packet response = new Packet();
+        if (request != null) {
+            response.setRequestId(request.getRequestId());
+            response.setKeepAlive(request.isKeepAlive());
+        }
+        response.setOutcomeCode("BUSY");
+        response.setOutcomeMessage(message);
+        response.setRetryAfterMillis(retryAfterMillis);
+        return response;
+    }
+
+    /**
+     * Risposta a una richiesta vuota o illeggibile: non ha un requestId a cui riferirsi, quindi chiude la connessione.
+     */
+    public static Packet invalid(String message) {
+        Packet response = new Packet();
+        response.setOutcomeCode("ERROR");
+        response.setOutcomeMessage(message);
+        return response;
+    }
+
+    /**
+     * BUSY per una richiesta non eseguita perché il server è al limite di richieste o connessioni.
+     */
+    public static Packet overloaded(Packet request) {
+        return busy(request, "Server sovraccarico, riprovare più tardi.", BUSY_RETRY_MILLIS);
+    }
+
+    private static String rateKey(Packet request) {
+        String user = request.getUserEmailAddress();
+        if (user == null && request.getEmail() != null) user = request.getEmail().getSender();
+        return user != null ? user.trim().toLowerCase() : null;
+    }
+
+    private Packet execute(Packet request, InetAddress remoteAddress) throws IOException {
+        Packet response = new Packet();
+        response.setRequestId(request.getRequestId());
+        response.setKeepAlive(request.isKeepAlive());
+
+        String cmd = request.getCommand();
+        String user = request.getUserEmailAddress();
+
+        if (cmd == null) {
+            response.setOutcomeCode("ERROR");
+            response.setOutcomeMessage("Comando mancante.");
+            return response;
+        }
+        controller.appendLog("Richiesta da " + remoteAddress + ": " + cmd);
+
+        switch (cmd) {
+            case "SEND_EMAIL":
+                Email email = request.getEmail();
+                if (email == null || email.getId() == null || email.getTimestamp() == null
+                        || email.getRecipients() == null || email.getRecipients().isEmpty()) {
+                    response.setOutcomeCode("ERROR");
+                    response.setOutcomeMessage("Email incompleta: mancano id, data o destinatari.");
+                    break;
+                }
+
+                if (model.userExists(email.getSender())) {
+                    List<String> invalidRecipients = new ArrayList<>();
+                    List<String> validRecipients = new ArrayList<>();
+
+                    for (String recipient : email.getRecipients()) {
+                        if (model.userExists(recipient)) {
+                            validRecipients.add(recipient);
+                        } else {
+                            invalidRecipients.add(recipient);
+                        }
+                    }
+
+                    if (!validRecipients.isEmpty()) {
+                        List<String> failedRecipients;
+                        try {
+                            failedRecipients = model.deliver(email, validRecipients);
+                        } catch (IOException e) {
+                            failedRecipients = new ArrayList<>(validRecipients);
+                        }
+                        for (String recipient : failedRecipients) {
+                            controller.appendLog("Errore scrittura su file per: " + recipient);
+                            invalidRecipients.add(recipient + " (Errore IO)");
+                        }
+                    }
+
+                    if (invalidRecipients.isEmpty()) {
+                        response.setOutcomeCode("OK");
+                        response.setOutcomeMessage("Email inviata con successo.");
+                        controller.appendLog("Email inviata con successo da " + email.getSender());
+                    } else {
+                        if (validRecipients.isEmpty()) {
+                            response.setOutcomeCode("ERROR");
+                            response.setOutcomeMessage("Invio fallito. Nessun destinatario valido trovato.");
+                            controller.appendLog("Invio fallito da " + email.getSender() + ": nessun destinatario valido.");
+                        } else {
+                            response.setOutcomeCode("PARTIAL_ERROR");
+                            String msg = "Email inviata a " + validRecipients.size() + " destinatari.\n" +
+                                    "User inesistenti (non consegnata): " + String.join(", ", invalidRecipients);
+                            response.setOutcomeMessage(msg);
+
+                            controller.appendLog("Invio parziale da " + email.getSender() + ". Validi: " +
+                                    validRecipients.size() + ", Errati: " + invalidRecipients);
+                        }
+                    }
+                } else {
+                    response.setOutcomeCode("ERROR");
+                    response.setOutcomeMessage("Mittente non riconosciuto o dati mancanti.");
+                }
+                break;
+
+            case "GET_UPDATES":
+            case "WAIT_UPDATES":
+                if (user != null && model.userExists(user)) {
+                    java.util.Date clientLastDate = request.getLastUpdateDate();
+
+                    if (clientLastDate != null && request.getSequence() == null) {
+                        List<Email> updates = model.getInbox(user, clientLastDate);
+
+                        response.setEmailList(updates);
+                        response.setOutcomeCode("OK");
+
+                        if (!updates.isEmpty()) {
+                            controller.appendLog("Inviati " + updates.size() + " nuovi messaggi a " + user);
+                        }
+                    } else if (request.getPageCursor() != null) {
+                        // Pagina successiva di una sincronizzazione iniziale: solo messaggi, il cursore di sequenza non cambia
+                        try {
+                            MailboxPage page = model.getPage(user, request.getPageCursor(), pageSize(request), request.isSummary());
+                            response.setEmailList(page.getEmails());
+                            response.setPageCursor(page.getNextCursor());
+                            response.setOutcomeCode("OK");
+                        } catch (IllegalArgumentException e) {
+                            response.setOutcomeCode("ERROR");
+                            response.setOutcomeMessage(e.getMessage());
+                        }
+                    } else {
+                        MailboxUpdates updates = model.getUpdates(user, request.getSequence(), request.getEpoch(),
+                                pageSize(request), request.isSummary());
+
+                        response.setEmailList(updates.getEmails());
+                        response.setDeletedIds(updates.getDeletedIds());
+                        response.setReadIds(updates.getReadIds());
+                        response.setSequence(updates.getSequence());
+                        response.setEpoch(updates.getEpoch());
+                        response.setFullSync(updates.isFullSync());
+                        response.setPageCursor(updates.getNextPageCursor());
+                        response.setOutcomeCode("OK");
+
+                        if (!updates.getEmails().isEmpty()) {
+                            controller.appendLog("Inviati " + updates.getEmails().size() + " nuovi messaggi a " + user);
+                        }
+                    }
+                } else {
+                    response.setOutcomeCode("ERROR");
+                    response.setOutcomeMessage("Utente sconosciuto: " + user);
+                }
+                break;
+
+            case "FETCH_EMAIL":
+                List<String> fetchIds = request.getEmailIds();
+                if (fetchIds == null && request.getEmail() != null) fetchIds = List.of(request.getEmail().getId());
+                if (fetchIds != null && !fetchIds.isEmpty() && model.userExists(user)) {
+                    List<Email> fetched = model.fetchEmails(user, fetchIds);
+                    if (fetched.isEmpty()) {
+                        response.setOutcomeCode("ERROR");
+                        response.setOutcomeMessage("Email non trovata.");
+                    } else {
+                        response.setEmailList(fetched);
+                        response.setOutcomeCode("OK");
+                    }
+                } else {
+                    response.setOutcomeCode("ERROR");
+                    response.setOutcomeMessage("Errore lettura email: dati non validi.");
+                }
+                break;
+
+            case "SEARCH":
+                if (user != null && model.userExists(user)) {
+                    int limit = pageSize(request);
+                    try {
+                        MailboxPage results = model.search(user, request.getQuery(), request.getPageCursor(),
+                                limit > 0 ? limit : MAX_PAGE_SIZE, request.isSummary());
+                        response.setEmailList(results.getEmails());
+                        response.setPageCursor(results.getNextCursor());
+                        response.setOutcomeCode("OK");
+                    } catch (IllegalArgumentException e) {
+                        response.setOutcomeCode("ERROR");
+                        response.setOutcomeMessage(e.getMessage());
+                    }
+                } else {
+                    response.setOutcomeCode("ERROR");
+                    response.setOutcomeMessage("Utente sconosciuto: " + user);
+                }
+                break;
+
+            case "DELETE_EMAIL":
+                Email emailToDelete = request.getEmail();
+                if (request.getEmailIds() != null && !request.getEmailIds().isEmpty() && model.userExists(user)) {
+                    int deleted = model.deleteEmails(user, request.getEmailIds());
+                    response.setOutcomeCode("OK");
+                    controller.appendLog(deleted + " email cancellate da " + user);
+                } else if (emailToDelete != null && model.userExists(user)) {
+                    model.deleteEmail(user, emailToDelete.getId());
+                    response.setOutcomeCode("OK");
+                    controller.appendLog("Email " + emailToDelete.getId() + " cancellata da " + user);
+                } else {
+                    response.setOutcomeCode("ERROR");
+                    response.setOutcomeMessage("Errore cancellazione: dati non validi.");
+                }
+                break;
+
+            case "MARK_AS_READ":
+                Email emailToMark = request.getEmail();
+                if (request.getEmailIds() != null && !request.getEmailIds().isEmpty() && model.userExists(user)) {
+                    int marked = model.markAsRead(user, request.getEmailIds());
+                    response.setOutcomeCode("OK");
+                    controller.appendLog(marked + " email segnate come lette da " + user);
+                } else if (emailToMark != null && model.userExists(user)) {
+                    model.markAsRead(user, emailToMark.getId());
+                    response.setOutcomeCode("OK");
+                    controller.appendLog("Email " + emailToMark.getId() + " segnata come letta da " + user);
+                } else {
+                    response.setOutcomeCode("ERROR");
+                    response.setOutcomeMessage("Errore aggiornamento stato lettura.");
+                }
+                break;
+
+            default:
+                response.setOutcomeCode("ERROR");
+                response.setOutcomeMessage("Comando sconosciuto: " + cmd);
+        }
+
+        return response;
+    }
+
+    private static int pageSize(Packet request) {
+        Integer requested = request.getPageSize();
+        if (requested == null || requested <= 0) {
+            return request.getPageCursor() != null ? MAX_PAGE_SIZE : 0;
+        }
+        return Math.min(requested, MAX_PAGE_SIZE);
+    }
+}
@@ -0,0 +1,117 @@
+package it.unito.mail.server.net;
+
+import it.unito.mail.server.controller.ServerController;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Front end a thread virtuali: ogni connessione viene servita da ClientHandler su un thread virtuale.
+ * Al più maxConcurrent handler sono in esecuzione e al più maxQueued connessioni accettate attendono
+ * il proprio turno; oltre questa soglia il thread di accept si ferma e le connessioni restano nel backlog.
+ */
+public class VirtualThreadServer {
+
+    private final int port;
+    private final ServerController controller;
+    private final RequestProcessor processor;
+    private final Semaphore admission;
+    private final Semaphore running;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakQueued = new AtomicInteger();
+    private final long statsMillis;
+
+    public VirtualThreadServer(int port, ServerController controller, int maxConcurrent, int maxQueued, long statsMillis) {
+        this.port = port;
+        this.controller = controller;
+        this.processor = new RequestProcessor(controller);
+        this.running = new Semaphore(Math.max(1, maxConcurrent));
+        this.admission = new Semaphore(Math.max(1, maxConcurrent) + Math.max(0, maxQueued));
+        this.statsMillis = statsMillis;
+    }
+
+    public void start() {
+        Thread acceptor = new Thread(this::acceptLoop, "virtual-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        if (statsMillis > 0) {
+            Thread stats = new Thread(this::reportLoop, "virtual-stats");
+            stats.setDaemon(true);
+            stats.start();
+        }
+    }
+
+    private void acceptLoop() {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            controller.appendLog("Server (thread virtuali) avviato e in ascolto sulla porta " + port);
+
+            while (true) {
+                admission.acquire();
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                } catch (IOException e) {
+                    admission.release();
+                    throw e;
+                }
+
+                queued.incrementAndGet();
+                Thread.ofVirtual().name("client-handler").start(() -> serve(clientSocket));
+            }
+        } catch (IOException e) {
+            controller.appendLog("Errore Server: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve(Socket clientSocket) {
+        peakQueued.accumulateAndGet(queued.get(), Math::max);
+        try {
+            running.acquire();
+        } catch (InterruptedException e) {
+            queued.decrementAndGet();
+            admission.release();
+            closeQuietly(clientSocket);
+            return;
+        }
+
+        queued.decrementAndGet();
+        active.incrementAndGet();
+        try {
+            new ClientHandler(clientSocket, controller, processor).run();
+        } finally {
+            active.decrementAndGet();
+            running.release();
+            admission.release();
+        }
+    }
+
+    private void reportLoop() {
+        while (true) {
+            try {
+                Thread.sleep(statsMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            int peak = peakQueued.getAndSet(0);
+            if (peak > 0) {
+                controller.appendLog("Handler attivi: " + active.get() + ", connessioni in coda: " + queued.get()
+                        + " (picco " + peak + ")");
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package it.unito.mail.server.net;
+
+import com.google.gson.Gson;
+import it.unito.mail.common.BinaryCodec;
+import it.unito.mail.common.Packet;
+import it.unito.mail.common.PacketCompression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Misura, su un server in esecuzione, i byte ricevuti e la latenza di una sincronizzazione completa
+ * (GET_UPDATES senza cursore) in JSON e in binario, con e senza compressione delle risposte,
+ * con le email complete o solo con le intestazioni.
+ * Uso: WireBenchmark [utente] [ripetizioni] [host] [porta]
+ */
+public class WireBenchmark {
+
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+
+    private final Gson gson = new Gson();
+    private final String host;
+    private final int port;
+
+    private WireBenchmark(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String user = args.length > 0 ? args[0] : "user1@mail.com";
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        String host = args.length > 2 ? args[2] : "127.0.0.1";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 8189;
+
+        WireBenchmark benchmark = new WireBenchmark(host, port);
+        System.out.printf("Sincronizzazione completa di %s, %d ripetizioni%n", user, rounds);
+        System.out.printf("%-12s %10s %12s %12s %12s%n", "formato", "messaggi", "byte", "media ms", "p95 ms");
+        benchmark.run("json", user, rounds, false, false, false);
+        benchmark.run("json+gzip", user, rounds, false, true, false);
+        benchmark.run("binario", user, rounds, true, false, false);
+        benchmark.run("binario+gzip", user, rounds, true, true, false);
+        benchmark.run("json intest.", user, rounds, false, false, true);
+        benchmark.run("bin. intest.", user, rounds, true, false, true);
+    }
+
+    private void run(String name, String user, int rounds, boolean binary, boolean gzip, boolean summary) throws IOException {
+        // una richiesta di riscaldamento, esclusa dalle misure
+        fetch(user, binary, gzip, summary, new long[1]);
+
+        long[] micros = new long[rounds];
+        long[] bytes = new long[1];
+        int emails = 0;
+        for (int i = 0; i < rounds; i++) {
+            bytes[0] = 0;
+            long start = System.nanoTime();
+            Packet response = fetch(user, binary, gzip, summary, bytes);
+            micros[i] = (System.nanoTime() - start) / 1_000;
+            if (!"OK".equals(response.getOutcomeCode())) {
+                throw new IOException("Risposta inattesa: " + response.getOutcomeMessage());
+            }
+            emails = response.getEmailList() != null ? response.getEmailList().size() : 0;
+        }
+        Arrays.sort(micros);
+        double mean = Arrays.stream(micros).average().orElse(0) / 1_000.0;
+        double p95 = micros[Math.min(rounds - 1, (int) (rounds * 0.95))] / 1_000.0;
+        System.out.printf("%-12s %10d %12d %12.2f %12.2f%n", name, emails, bytes[0], mean, p95);
+    }
+
+    private Packet fetch(String user, boolean binary, boolean gzip, boolean summary, long[] received) throws IOException {
+        Packet request = new Packet("GET_UPDATES", user);
+        if (gzip) request.setAcceptEncoding(PacketCompression.GZIP);
+        request.setSummary(summary);
+
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new CountingInputStream(new BufferedInputStream(socket.getInputStream()), received);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Packet response;
+            if (binary) {
+                out.write(BinaryCodec.PREAMBLE);
+                BinaryCodec.writeFrame(out, request);
+                DataInputStream data = new DataInputStream(in);
+                if (!BinaryCodec.isPreamble(data.readNBytes(BinaryCodec.PREAMBLE.length))) {
+                    throw new IOException("Il server non supporta la codifica binaria");
+                }
+                response = BinaryCodec.readFrame(data, MAX_RESPONSE_BYTES);
+            } else {
+                out.write((gson.toJson(request) + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line = PacketCompression.decodeLine(reader.readLine(), MAX_RESPONSE_BYTES);
+                response = line != null ? gson.fromJson(line, Packet.class) : null;
+            }
+            if (response == null) throw new IOException("Connessione chiusa dal server");
+            return response;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final long[] counter;
+
+        CountingInputStream(InputStream in, long[] counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) counter[0]++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) counter[0] += n;
+            return n;
+        }
+    }
+}
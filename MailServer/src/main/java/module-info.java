@@ -6,7 +6,7 @@ module MailServer {
 
     opens it.unito.mail.server to javafx.fxml;
     opens it.unito.mail.server.controller to javafx.fxml;
-    opens it.unito.mail.server.model to javafx.fxml;
+    opens it.unito.mail.server.model to javafx.fxml, com.google.gson;
     opens it.unito.mail.server.net to javafx.fxml;
 
     exports it.unito.mail.server;
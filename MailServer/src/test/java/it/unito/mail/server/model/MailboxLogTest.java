@@ -0,0 +1,232 @@
+package it.unito.mail.server.model;
+
+import com.google.gson.Gson;
+import it.unito.mail.common.Email;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailboxLogTest {
+
+    private final Gson gson = new Gson();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysAppendedRecordsInOrder() throws IOException {
+        MailboxLog log = new MailboxLog(directory.resolve("mailbox.log"), gson, 0);
+        List<StoredEmail> emails = emails(3, "breve");
+        appendDeposits(log, emails, 1);
+        log.appendAll(List.of(
+                new MailboxChange(4, MailboxChange.Type.READ, emails.get(0).getId()),
+                new MailboxChange(5, MailboxChange.Type.DELETE, emails.get(1).getId())), Map.of(), true);
+
+        List<String> events = replay(log);
+
+        assertEquals(List.of(
+                "deposit 1 " + emails.get(0).getId(),
+                "deposit 2 " + emails.get(1).getId(),
+                "deposit 3 " + emails.get(2).getId(),
+                "read 4 " + emails.get(0).getId(),
+                "delete 5 " + emails.get(1).getId()), events);
+        assertFalse(log.needsUpgrade());
+    }
+
+    @Test
+    void depositKeepsHeaderFieldsAndSize() throws IOException {
+        MailboxLog log = new MailboxLog(directory.resolve("mailbox.log"), gson, 0);
+        StoredEmail email = emails(1, "città àèì").get(0);
+        appendDeposits(log, List.of(email), 1);
+
+        List<StoredEmail> replayed = new ArrayList<>();
+        log.replay(new Recorder(new ArrayList<>()) {
+            @Override
+            public void onDeposit(long sequence, StoredEmail deposited) {
+                replayed.add(deposited);
+            }
+        });
+
+        StoredEmail copy = replayed.get(0);
+        assertEquals(email.getId(), copy.getId());
+        assertEquals(email.getSender(), copy.getSender());
+        assertEquals(email.getSubject(), copy.getSubject());
+        assertEquals(email.getTimestamp(), copy.getTimestamp());
+        assertEquals(email.getBodyRef(), copy.getBodyRef());
+        assertEquals(StoredEmail.textSize("città àèì 0"), copy.getSize());
+    }
+
+    @Test
+    void compressedAppendIsSmallerAndReplaysTheSameRecords() throws IOException {
+        List<StoredEmail> emails = emails(40, "riunione del progetto per la consegna del report");
+        MailboxLog plain = new MailboxLog(directory.resolve("plain.log"), gson, 0);
+        MailboxLog compressed = new MailboxLog(directory.resolve("compressed.log"), gson, 16);
+        appendDeposits(plain, emails, 1);
+        appendDeposits(compressed, emails, 1);
+
+        assertTrue(Files.size(compressed.getPath()) < Files.size(plain.getPath()) / 2);
+        assertEquals(replay(plain), replay(compressed));
+        assertFalse(compressed.needsUpgrade());
+    }
+
+    @Test
+    void compressedRewriteReplaysInBlocks() throws IOException {
+        List<StoredEmail> emails = emails(50, "lezione di domani in aula con il gruppo");
+        MailboxLog log = new MailboxLog(directory.resolve("mailbox.log"), gson, 8);
+        log.rewrite(50, emails);
+        log.appendAll(List.of(new MailboxChange(51, MailboxChange.Type.DELETE, emails.get(3).getId())), Map.of(), false);
+
+        List<String> events = replay(log);
+
+        assertEquals(52, events.size());
+        assertEquals("checkpoint 50", events.get(0));
+        for (int i = 0; i < emails.size(); i++) {
+            assertTrue(events.get(i + 1).endsWith(" " + emails.get(i).getId()), events.get(i + 1));
+        }
+        assertEquals("delete 51 " + emails.get(3).getId(), events.get(51));
+    }
+
+    @Test
+    void replaySinceVisitsOnlyLaterRecords() throws IOException {
+        MailboxLog log = compressedLogWithTail();
+
+        List<String> events = new ArrayList<>();
+        assertEquals(72, log.replaySince(60, new Recorder(events)));
+        assertEquals(12, events.size());
+        assertTrue(events.get(0).startsWith("deposit 61 "), events.get(0));
+        assertTrue(events.get(10).startsWith("delete 71 "), events.get(10));
+        assertTrue(events.get(11).startsWith("read 72 "), events.get(11));
+
+        List<String> none = new ArrayList<>();
+        assertEquals(72, log.replaySince(72, new Recorder(none)));
+        assertTrue(none.isEmpty());
+
+        List<String> beforeRewrite = new ArrayList<>();
+        log.replaySince(10, new Recorder(beforeRewrite));
+        assertEquals("checkpoint 50", beforeRewrite.get(0));
+    }
+
+    @Test
+    void replaySinceDoesNotReadSkippedBlocks() throws IOException {
+        MailboxLog log = compressedLogWithTail();
+        // si altera il payload del primo blocco della riscrittura, dopo header (5 byte) e checkpoint (17 byte)
+        try (FileChannel channel = FileChannel.open(log.getPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0x55}), 5 + 17 + 17 + 10);
+        }
+
+        assertEquals(List.of("checkpoint 50"), replay(log));
+        List<String> events = new ArrayList<>();
+        assertEquals(72, log.replaySince(50, new Recorder(events)));
+        assertEquals(22, events.size());
+    }
+
+    @Test
+    void plainLogNeedsUpgradeWhenCompressionIsEnabled() throws IOException {
+        Path path = directory.resolve("mailbox.log");
+        appendDeposits(new MailboxLog(path, gson, 0), emails(2, "testo"), 1);
+
+        MailboxLog log = new MailboxLog(path, gson, 16);
+        assertEquals(2, replay(log).size());
+        assertTrue(log.needsUpgrade());
+    }
+
+    @Test
+    void tornTailIsDiscardedAndAppendsContinue() throws IOException {
+        Path path = directory.resolve("mailbox.log");
+        MailboxLog log = new MailboxLog(path, gson, 0);
+        List<StoredEmail> emails = emails(3, "testo");
+        appendDeposits(log, emails.subList(0, 2), 1);
+        // record lasciato a metà da un crash
+        Files.write(path, new byte[]{0, 0, 0, 99, MailboxLog.DEPOSIT, 1, 2}, StandardOpenOption.APPEND);
+
+        MailboxLog reopened = new MailboxLog(path, gson, 0);
+        assertEquals(2, replay(reopened).size());
+
+        appendDeposits(reopened, emails.subList(2, 3), 3);
+        List<String> events = replay(new MailboxLog(path, gson, 0));
+        assertEquals(3, events.size());
+        assertEquals("deposit 3 " + emails.get(2).getId(), events.get(2));
+    }
+
+    // riscrittura a 50 in blocchi da 8, depositi 51-70 in un blocco compresso, cancellazione 71 e lettura 72 in chiaro
+    private MailboxLog compressedLogWithTail() throws IOException {
+        List<StoredEmail> emails = emails(70, "lezione di domani in aula con il gruppo");
+        MailboxLog log = new MailboxLog(directory.resolve("mailbox.log"), gson, 8);
+        log.rewrite(50, emails.subList(0, 50));
+        appendDeposits(log, emails.subList(50, 70), 51);
+        log.appendAll(List.of(new MailboxChange(71, MailboxChange.Type.DELETE, emails.get(3).getId())), Map.of(), false);
+        log.appendAll(List.of(new MailboxChange(72, MailboxChange.Type.READ, emails.get(60).getId())), Map.of(), false);
+        return log;
+    }
+
+    private static List<StoredEmail> emails(int count, String text) {
+        List<StoredEmail> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Email email = new Email("user1@mail.com", List.of("user2@mail.com"), "oggetto " + i, text + " " + i);
+            // il JSON del log conserva le date al secondo
+            email.setTimestamp(new Date(1_700_000_000_000L + i * 1000L));
+            emails.add(StoredEmail.of(email, "ref" + i));
+        }
+        return emails;
+    }
+
+    private static void appendDeposits(MailboxLog log, List<StoredEmail> emails, long firstSequence) throws IOException {
+        List<MailboxChange> changes = new ArrayList<>();
+        Map<String, StoredEmail> byId = new LinkedHashMap<>();
+        long sequence = firstSequence;
+        for (StoredEmail email : emails) {
+            changes.add(new MailboxChange(sequence++, MailboxChange.Type.DEPOSIT, email.getId()));
+            byId.put(email.getId(), email);
+        }
+        log.appendAll(changes, byId, false);
+    }
+
+    private static List<String> replay(MailboxLog log) throws IOException {
+        List<String> events = new ArrayList<>();
+        log.replay(new Recorder(events));
+        return events;
+    }
+
+    private static class Recorder implements MailboxLog.Visitor {
+        private final List<String> events;
+
+        Recorder(List<String> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void onCheckpoint(long sequence) {
+            events.add("checkpoint " + sequence);
+        }
+
+        @Override
+        public void onDeposit(long sequence, StoredEmail email) {
+            events.add("deposit " + sequence + " " + email.getId());
+        }
+
+        @Override
+        public void onDelete(long sequence, String emailId) {
+            events.add("delete " + sequence + " " + emailId);
+        }
+
+        @Override
+        public void onRead(long sequence, String emailId) {
+            events.add("read " + sequence + " " + emailId);
+        }
+    }
+}
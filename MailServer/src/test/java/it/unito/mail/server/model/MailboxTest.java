@@ -0,0 +1,67 @@
+package it.unito.mail.server.model;
+
+import com.google.gson.Gson;
+import it.unito.mail.common.Email;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailboxTest {
+
+    private static final long EPOCH = 7;
+
+    private final Gson gson = new Gson();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void changesInLogMatchTheLoadedMailbox() throws IOException {
+        MessageStore store = new MessageStore(directory.resolve("messages"), gson, 0, true);
+        MailboxLog log = new MailboxLog(directory.resolve("mailbox.log"), gson, 8);
+        List<StoredEmail> emails = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            Email email = new Email("user1@mail.com", List.of("user2@mail.com"), "oggetto " + i, "testo del messaggio " + i);
+            emails.add(StoredEmail.of(email, store.store(StoredEmail.bodyOf(email), 1)));
+        }
+        log.rewrite(30, emails.subList(0, 30));
+        long sequence = 30;
+        for (StoredEmail email : emails.subList(30, 40)) {
+            log.appendAll(List.of(new MailboxChange(++sequence, MailboxChange.Type.DEPOSIT, email.getId())),
+                    Map.of(email.getId(), email), false);
+        }
+        log.appendAll(List.of(
+                new MailboxChange(41, MailboxChange.Type.DELETE, emails.get(2).getId()),
+                new MailboxChange(42, MailboxChange.Type.DELETE, emails.get(35).getId()),
+                new MailboxChange(43, MailboxChange.Type.READ, emails.get(5).getId()),
+                new MailboxChange(44, MailboxChange.Type.READ, emails.get(38).getId())), Map.of(), false);
+
+        MailboxUpdates loaded = Mailbox.load("user2@mail.com", log, store, EPOCH).changesSince(33L, EPOCH, store);
+        MailboxUpdates tail = Mailbox.changesInLog(log, 33, EPOCH, false, store);
+
+        assertEquals(loaded.getSequence(), tail.getSequence());
+        assertEquals(ids(loaded.getEmails()), ids(tail.getEmails()));
+        assertEquals(loaded.getReadIds(), tail.getReadIds());
+        // il journal riporta anche la cancellazione del 35, arrivato e cancellato dopo il cursore: il client non l'ha mai visto
+        assertTrue(loaded.getDeletedIds().containsAll(tail.getDeletedIds()));
+        assertEquals(List.of(emails.get(2).getId()), tail.getDeletedIds());
+        assertTrue(tail.getEmails().stream().filter(e -> e.getId().equals(emails.get(38).getId())).allMatch(Email::isRead));
+        assertEquals("testo del messaggio 39", tail.getEmails().get(tail.getEmails().size() - 1).getText());
+
+        assertNull(Mailbox.changesInLog(log, 20, EPOCH, true, store), "log riscritto dopo il cursore");
+        assertNull(Mailbox.changesInLog(log, 45, EPOCH, true, store), "cursore oltre l'ultima sequenza");
+    }
+
+    private static List<String> ids(List<Email> emails) {
+        return emails.stream().map(Email::getId).toList();
+    }
+}
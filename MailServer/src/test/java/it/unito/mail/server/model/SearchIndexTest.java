@@ -0,0 +1,143 @@
+package it.unito.mail.server.model;
+
+import com.google.gson.Gson;
+import it.unito.mail.common.Email;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private MessageStore store;
+    private Path indexPath;
+
+    @BeforeEach
+    void setUp() {
+        store = new MessageStore(directory.resolve("messages"), new Gson(), 0, false);
+        indexPath = directory.resolve("mailbox.idx");
+    }
+
+    @Test
+    void reconcileIndexesMissingMessagesAndDropsStaleOnes() throws IOException {
+        StoredEmail indexed = stored("riunione", "ordine del giorno");
+        StoredEmail unindexed = stored("fattura", "pagamento entro venerdì");
+        SearchIndex.appendAdded(indexPath, Map.of(indexed.getId(), SearchIndex.tokensOf(email(indexed, "ordine del giorno"))));
+        SearchIndex.appendAdded(indexPath, Map.of("cancellato", new String[]{"vecchio"}));
+        List<StoredEmail> mailbox = List.of(indexed, unindexed);
+
+        SearchIndex index = SearchIndex.read(indexPath);
+        List<StoredEmail> missing = index.missing(mailbox);
+        assertEquals(List.of(unindexed), missing);
+
+        index.reconcile(mailbox, prepare(missing), store);
+
+        assertEquals(2, index.size());
+        assertEquals(Set.of(unindexed.getId()), index.search(List.of("pagam")));
+        assertEquals(Set.of(indexed.getId()), index.search(List.of("giorno", "riun")));
+        assertTrue(index.search(List.of("vecchio")).isEmpty());
+
+        SearchIndex reread = SearchIndex.read(indexPath);
+        assertEquals(2, reread.size());
+        assertTrue(reread.missing(mailbox).isEmpty());
+        assertEquals(Set.of(unindexed.getId()), reread.search(List.of("venerdi")));
+    }
+
+    @Test
+    void messagesDepositedAfterTheReadAreIndexedFromTheStore() throws IOException {
+        StoredEmail early = stored("primo", "testo iniziale");
+        SearchIndex index = SearchIndex.read(indexPath);
+        Map<String, SearchIndex.Tokens> prepared = prepare(index.missing(List.of(early)));
+
+        StoredEmail late = stored("secondo", "arrivato dopo");
+        index.reconcile(List.of(early, late), prepared, store);
+
+        assertEquals(Set.of(late.getId()), index.search(List.of("arrivato")));
+        assertEquals(Set.of(early.getId()), index.search(List.of("iniziale")));
+    }
+
+    @Test
+    void unreadableBodyIsRetriedOnTheNextOpen() throws IOException {
+        MessageBody body = new MessageBody(List.of("user2@mail.com"), "parola zanzibar");
+        String ref = store.store(body, 1);
+        StoredEmail email = StoredEmail.of(new Email("user1@mail.com", List.of("user2@mail.com"), "oggetto", body.getText()), ref);
+        store.release(ref);
+        List<StoredEmail> mailbox = List.of(email);
+
+        SearchIndex index = SearchIndex.read(indexPath);
+        index.reconcile(mailbox, prepare(index.missing(mailbox)), store);
+        assertEquals(Set.of(email.getId()), index.search(List.of("oggetto")));
+        assertTrue(index.search(List.of("zanzibar")).isEmpty());
+
+        store.store(body, 1);
+        SearchIndex reopened = SearchIndex.read(indexPath);
+        List<StoredEmail> missing = reopened.missing(mailbox);
+        assertEquals(List.of(email), missing);
+        reopened.reconcile(mailbox, prepare(missing), store);
+
+        assertEquals(Set.of(email.getId()), reopened.search(List.of("zanzibar")));
+        assertFalse(reopened.retryDue());
+        assertTrue(SearchIndex.read(indexPath).missing(mailbox).isEmpty());
+    }
+
+    @Test
+    void addedAndRemovedUpdateMemoryAndFile() throws IOException {
+        StoredEmail first = stored("progetto", "consegna");
+        StoredEmail second = stored("progetto", "revisione");
+        SearchIndex index = SearchIndex.read(indexPath);
+        index.reconcile(List.of(), Map.of(), store);
+
+        index.added(Map.of(
+                first.getId(), SearchIndex.tokensOf(email(first, "consegna")),
+                second.getId(), SearchIndex.tokensOf(email(second, "revisione"))));
+        index.removed(List.of(first.getId()));
+
+        assertEquals(Set.of(second.getId()), index.search(List.of("progetto")));
+        assertEquals(Set.of(second.getId()), SearchIndex.read(indexPath).search(List.of("progetto")));
+    }
+
+    @Test
+    void compactRewritesAFileMadeMostlyOfSupersededRecords() throws IOException {
+        for (int i = 0; i < 1500; i++) {
+            SearchIndex.appendAdded(indexPath, Map.of("id" + i, new String[]{"parola" + i}));
+            if (i >= 10) SearchIndex.appendRemoved(indexPath, List.of("id" + i));
+        }
+        long before = Files.size(indexPath);
+
+        SearchIndex.compact(indexPath);
+
+        assertTrue(Files.size(indexPath) < before / 10);
+        SearchIndex compacted = SearchIndex.read(indexPath);
+        assertEquals(10, compacted.size());
+        assertEquals(Set.of("id3"), compacted.search(List.of("parola3")));
+    }
+
+    private StoredEmail stored(String subject, String text) throws IOException {
+        Email email = new Email("user1@mail.com", List.of("user2@mail.com"), subject, text);
+        return StoredEmail.of(email, store.store(StoredEmail.bodyOf(email), 1));
+    }
+
+    private static Email email(StoredEmail stored, String text) {
+        return new Email(stored.getSender(), List.of("user2@mail.com"), stored.getSubject(), text);
+    }
+
+    private Map<String, SearchIndex.Tokens> prepare(List<StoredEmail> missing) {
+        Map<String, SearchIndex.Tokens> prepared = new HashMap<>();
+        for (StoredEmail email : missing) prepared.put(email.getId(), SearchIndex.tokensOf(email, store));
+        return prepared;
+    }
+}
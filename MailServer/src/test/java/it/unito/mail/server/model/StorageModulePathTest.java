@@ -0,0 +1,60 @@
+package it.unito.mail.server.model;
+
+import com.google.gson.Gson;
+import it.unito.mail.common.Email;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Gira sul module path: lo storage serializza con Gson i record del modello,
+ * che quindi deve essere aperto a com.google.gson.
+ */
+class StorageModulePathTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void storageSerializesModelRecordsFromTheNamedModule() throws IOException {
+        assertTrue(MessageStore.class.getModule().isNamed(), "il test deve girare sul module path");
+        Gson gson = new Gson();
+        MessageStore store = new MessageStore(directory.resolve("messages"), gson, 0, false);
+        Email email = new Email("user1@mail.com", List.of("user2@mail.com"), "oggetto", "testo");
+
+        StoredEmail stored = StoredEmail.of(email, store.store(StoredEmail.bodyOf(email), 1));
+        MailboxLog log = new MailboxLog(directory.resolve("mailbox.log"), gson, 0);
+        log.appendAll(List.of(new MailboxChange(1, MailboxChange.Type.DEPOSIT, stored.getId())),
+                Map.of(stored.getId(), stored), true);
+
+        List<StoredEmail> replayed = new ArrayList<>();
+        log.replay(new MailboxLog.Visitor() {
+            @Override
+            public void onCheckpoint(long sequence) {
+            }
+
+            @Override
+            public void onDeposit(long sequence, StoredEmail deposited) {
+                replayed.add(deposited);
+            }
+
+            @Override
+            public void onDelete(long sequence, String emailId) {
+            }
+
+            @Override
+            public void onRead(long sequence, String emailId) {
+            }
+        });
+        assertEquals(1, replayed.size());
+        assertEquals("testo", store.load(replayed.get(0).getBodyRef()).getText());
+    }
+}